@@ -75,27 +75,21 @@ public class DiscreteSanityCheck {
 	private void fitLocations(InteractiveTableModel table,
 			Set<String> uniqueTreeStates) {
 
-		Object[] uniqueTreeStatesArray = uniqueTreeStates.toArray();
-		for (int i = 0; i < table.getRowCount(); i++) {
-
-			String state = null;
-
-			for (int j = 0; j < uniqueTreeStatesArray.length; j++) {
-
-				String name = String.valueOf(table.getValueAt(i, 0));
-
-				if (name.toLowerCase().equals(
-						((String) uniqueTreeStatesArray[j]).toLowerCase())) {
-
-					state = name;
+		// states matched ignoring case, as LocationRegistry does
+		Set<String> treeStates = new HashSet<String>(
+				2 * uniqueTreeStates.size());
+		for (String state : uniqueTreeStates) {
+			if (state != null) {
+				treeStates.add(state.toLowerCase());
+			}
+		}// END: unique discrete states loop
 
-				}// END: if location and discrete states match
+		for (int i = 0; i < table.getRowCount(); i++) {
 
-			}// END: unique discrete states loop
+			String name = String.valueOf(table.getValueAt(i, 0));
 
-			if (state == null) { // if none matches
-				System.out.println("Location "
-						+ String.valueOf(table.getValueAt(i, 0))
+			if (!treeStates.contains(name.toLowerCase())) { // if none matches
+				System.out.println("Location " + name
 						+ " does not fit any of the discrete states");
 			}
 
@@ -0,0 +1,176 @@
+package contouring;
+
+import java.util.Arrays;
+
+import math.FastFourierTransform;
+import math.NormalDistribution;
+
+/**
+ * Linear binning + FFT approximation of the bi-variate Gaussian kernel density
+ * estimate (Wand 1994, as in KernSmooth::bkde2D). Observations are spread over
+ * the four surrounding grid nodes, and the binned counts are convolved with the
+ * separable kernel along the columns and then along the rows of the grid. Cost
+ * is O(nx + n^2 log n) and memory O(n^2), independently of the number of
+ * observations. Observations outside the grid limits are dropped.
+ */
+public class BinnedKDE2D {
+
+	/*
+	 * @param x x-coordinates of observations
+	 *
+	 * @param y y-coordinates of observations
+	 *
+	 * @param h bi-variate smoothing bandwidths
+	 *
+	 * @param gx x-grid points, equally spaced
+	 *
+	 * @param gy y-grid points, equally spaced
+	 *
+	 * @return density at the grid points, indexed [x][y]
+	 */
+	public static double[][] estimate(double[] x, double[] y, double[] h,
+			double[] gx, double[] gy) {
+
+		int nx = x.length;
+		int n = gx.length;
+		int m = gy.length;
+
+		double[][] z = bin(x, y, gx, gy);
+
+		// kernels are never truncated, padding to twice the grid avoids wrap around
+		int padded = FastFourierTransform.nextPowerOfTwo(Math.max(2 * n - 1,
+				2 * m - 1));
+		double[] kernelX = kernelSpectrum(gx[1] - gx[0], h[0], n, padded);
+		double[] kernelY = kernelSpectrum(gy[1] - gy[0], h[1], m, padded);
+
+		double[] real = new double[padded];
+		double[] imaginary = new double[padded];
+
+		// convolve columns two at a time, packed as real and imaginary parts
+		for (int j = 0; j < m; j += 2) {
+
+			boolean pair = j + 1 < m;
+			for (int i = 0; i < n; i++) {
+				real[i] = z[i][j];
+				imaginary[i] = pair ? z[i][j + 1] : 0;
+			}
+
+			convolve(real, imaginary, kernelX, n);
+
+			for (int i = 0; i < n; i++) {
+				z[i][j] = real[i];
+				if (pair) {
+					z[i][j + 1] = imaginary[i];
+				}
+			}
+		}// END: columns loop
+
+		double scale = nx * h[0] * h[1];
+
+		// then the rows
+		for (int i = 0; i < n; i += 2) {
+
+			boolean pair = i + 1 < n;
+			System.arraycopy(z[i], 0, real, 0, m);
+			if (pair) {
+				System.arraycopy(z[i + 1], 0, imaginary, 0, m);
+			} else {
+				Arrays.fill(imaginary, 0, m, 0);
+			}
+
+			convolve(real, imaginary, kernelY, m);
+
+			for (int j = 0; j < m; j++) {
+				z[i][j] = Math.max(real[j], 0) / scale;
+				if (pair) {
+					z[i + 1][j] = Math.max(imaginary[j], 0) / scale;
+				}
+			}
+		}// END: rows loop
+
+		return z;
+	}// END: estimate
+
+	private static double[][] bin(double[] x, double[] y, double[] gx,
+			double[] gy) {
+
+		int n = gx.length;
+		int m = gy.length;
+		double dx = gx[1] - gx[0];
+		double dy = gy[1] - gy[0];
+
+		double[][] counts = new double[n][m];
+		for (int k = 0; k < x.length; k++) {
+
+			double fx = (x[k] - gx[0]) / dx;
+			double fy = (y[k] - gy[0]) / dy;
+			if (!(fx >= 0 && fx <= n - 1 && fy >= 0 && fy <= m - 1)) {
+				continue;
+			}
+
+			int i = Math.min((int) fx, n - 2);
+			int j = Math.min((int) fy, m - 2);
+			double wx = fx - i;
+			double wy = fy - j;
+
+			counts[i][j] += (1 - wx) * (1 - wy);
+			counts[i + 1][j] += wx * (1 - wy);
+			counts[i][j + 1] += (1 - wx) * wy;
+			counts[i + 1][j + 1] += wx * wy;
+
+		}// END: observations loop
+
+		return counts;
+	}// END: bin
+
+	/*
+	 * Transform of the kernel sampled at grid lags, laid out circularly. The
+	 * kernel is real and symmetric so its transform is real.
+	 */
+	private static double[] kernelSpectrum(double delta, double h,
+			int length, int padded) {
+
+		double[] real = new double[padded];
+		double[] imaginary = new double[padded];
+
+		for (int lag = 0; lag < length; lag++) {
+			double value = NormalDistribution.pdf(lag * delta / h, 0, 1);
+			real[lag] = value;
+			if (lag > 0) {
+				real[padded - lag] = value;
+			}
+		}
+
+		FastFourierTransform.transform(real, imaginary, false);
+
+		return real;
+	}// END: kernelSpectrum
+
+	/*
+	 * Circular convolution of two packed real sequences of the given length
+	 * with a real kernel spectrum, results are left in place
+	 */
+	private static void convolve(double[] real, double[] imaginary,
+			double[] kernel, int length) {
+
+		int padded = real.length;
+		Arrays.fill(real, length, padded, 0);
+		Arrays.fill(imaginary, length, padded, 0);
+
+		FastFourierTransform.transform(real, imaginary, false);
+
+		for (int k = 0; k < padded; k++) {
+			real[k] *= kernel[k];
+			imaginary[k] *= kernel[k];
+		}
+
+		FastFourierTransform.transform(real, imaginary, true);
+
+		for (int k = 0; k < length; k++) {
+			real[k] /= padded;
+			imaginary[k] /= padded;
+		}
+
+	}// END: convolve
+
+}// END: class
@@ -8,4 +8,6 @@ public interface ContourMaker {
 
 	ContourPath[] getContourPaths(double level);
 
+	ContourPath[][] getContourPaths(double[] levels);
+
 }
@@ -0,0 +1,51 @@
+package contouring;
+
+/**
+ * Traces the HPD contours of the kernel density estimate with MarchingSquares
+ */
+public class ContourWithMarchingSquares extends KernelDensityEstimator2D {
+
+	public ContourWithMarchingSquares(final double[] x, final double[] y,
+			final double[] h, final int n, final double[] lims) {
+		super(x, y, h, n, lims);
+	}
+
+	public ContourWithMarchingSquares(final double[] x, final double[] y) {
+		super(x, y);
+	}
+
+	public ContourWithMarchingSquares(final double[] x, final double[] y,
+			int n) {
+		super(x, y, n);
+	}
+
+	public ContourWithMarchingSquares(final double[] x, final double[] y,
+			int n, KdeModeEnum mode) {
+		super(x, y, n, mode);
+	}
+
+	public ContourWithMarchingSquares(final double[] x, final double[] y,
+			int n, KdeModeEnum mode, int threadsCount) {
+		super(x, y, n, mode, threadsCount);
+	}
+
+	public ContourPath[] getContourPaths(double hpdValue) {
+		return getContourPaths(new double[] { hpdValue })[0];
+	}
+
+	public ContourPath[][] getContourPaths(double[] hpdValues) {
+
+		double[] thresholdDensities = findLevelsCorrespondingToMasses(hpdValues);
+
+		MarchingSquares contourPlot = new MarchingSquares(getXGrid(),
+				getYGrid(), getKDE());
+
+		ContourPath[][] paths = new ContourPath[hpdValues.length][];
+		for (int k = 0; k < hpdValues.length; k++) {
+			paths[k] = contourPlot.getContourPaths(thresholdDensities[k], k);
+		}
+
+		return paths;
+	}
+
+}
@@ -23,38 +23,58 @@ public class ContourWithSynder extends KernelDensityEstimator2D {
 		super(x, y, n);
 	}
 
+	public ContourWithSynder(final double[] x, final double[] y, int n,
+			KdeModeEnum mode) {
+		super(x, y, n, mode);
+	}
+
+	public ContourWithSynder(final double[] x, final double[] y, int n,
+			KdeModeEnum mode, int threadsCount) {
+		super(x, y, n, mode, threadsCount);
+	}
+
 	public ContourPath[] getContourPaths(double hpdValue) {
 
 		if (contourPaths == null) {
+			contourPaths = getContourPaths(new double[] { hpdValue })[0];
+		}
 
-			double thresholdDensity = findLevelCorrespondingToMass(hpdValue);
-
-			SnyderContour contourPlot = new SnyderContour(getXGrid().length,
-					getYGrid().length);
-			contourPlot.setDeltas(getXGrid()[1] - getXGrid()[0], getYGrid()[1]
-					- getYGrid()[0]);
-			contourPlot.setOffsets(getXGrid()[0], getYGrid()[0]);
-
-			List<LinkedList<Point2D>> allPaths = new ArrayList<LinkedList<Point2D>>();
-			contourPlot.ContourKernel(getKDE(), allPaths, thresholdDensity);
-
-			contourPaths = new ContourPath[allPaths.size()];
-			for (int i = 0; i < allPaths.size(); i++) {
-				LinkedList<Point2D> path = allPaths.get(i);
-				int len = path.size();
-				double[] x = new double[len];
-				double[] y = new double[len];
-				for (int j = 0; j < len; j++) {
-					Point2D pt = path.get(j);
-					x[j] = pt.getX();
-					y[j] = pt.getY();
-				}
-				contourPaths[i] = new ContourPath(new ContourAttrib(
-						thresholdDensity), 1, x, y);
+		return contourPaths;
+	}
+
+	public ContourPath[][] getContourPaths(double[] hpdValues) {
+
+		double[] thresholdDensities = findLevelsCorrespondingToMasses(hpdValues);
+
+		SnyderContour contourPlot = new SnyderContour(getXGrid().length,
+				getYGrid().length);
+		contourPlot.setDeltas(getXGrid()[1] - getXGrid()[0], getYGrid()[1]
+				- getYGrid()[0]);
+		contourPlot.setOffsets(getXGrid()[0], getYGrid()[0]);
+
+		List<LinkedList<Point2D>> allPaths = new ArrayList<LinkedList<Point2D>>();
+		List<Integer> pathLevels = new ArrayList<Integer>();
+		contourPlot.ContourKernel(getKDE(), allPaths, pathLevels,
+				thresholdDensities);
+
+		ContourPath[] paths = new ContourPath[allPaths.size()];
+		for (int i = 0; i < allPaths.size(); i++) {
+			LinkedList<Point2D> path = allPaths.get(i);
+			int len = path.size();
+			double[] x = new double[len];
+			double[] y = new double[len];
+			int j = 0;
+			for (Point2D pt : path) {
+				x[j] = pt.getX();
+				y[j] = pt.getY();
+				j++;
 			}
+			int level = pathLevels.get(i);
+			paths[i] = new ContourPath(new ContourAttrib(
+					thresholdDensities[level]), level, x, y);
 		}
 
-		return contourPaths;
+		return groupByLevel(paths, hpdValues.length);
 	}
 
 	private ContourPath[] contourPaths = null;
@@ -6,8 +6,6 @@ import math.DiscreteStatistics;
 import math.Matrix;
 import math.NormalDistribution;
 import math.Vector;
-import cern.colt.list.DoubleArrayList;
-import cern.jet.stat.Descriptive;
 
 /**
  * KernelDensityEstimator2D creates a bi-variate kernel density smoother for
@@ -19,6 +17,45 @@ import cern.jet.stat.Descriptive;
 
 public class KernelDensityEstimator2D implements ContourMaker {
 
+	public enum KdeModeEnum {
+		EXACT, // direct summation over all observations
+		BINNED, // linear binning and FFT convolution, see BinnedKDE2D
+		TRUNCATED // exact within 1e-10, parallel over grid rows, see TruncatedKDE2D
+	}
+
+	public enum ContourEngineEnum {
+		GENERATOR, // ContourGenerator
+		SNYDER, // ContourWithSynder
+		MARCHING_SQUARES // ContourWithMarchingSquares
+	}
+
+	/*
+	 * KDE of the observations on an n x n grid, contoured by the given engine
+	 */
+	public static ContourMaker createContourMaker(final double[] x,
+			final double[] y, final int n, final KdeModeEnum mode,
+			final ContourEngineEnum engine) {
+		return createContourMaker(x, y, n, mode, engine, Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	/*
+	 * @param threadsCount threads evaluating the estimate, 1 for callers
+	 * already running one estimate per thread
+	 */
+	public static ContourMaker createContourMaker(final double[] x,
+			final double[] y, final int n, final KdeModeEnum mode,
+			final ContourEngineEnum engine, final int threadsCount) {
+		switch (engine) {
+		case GENERATOR:
+			return new KernelDensityEstimator2D(x, y, n, mode, threadsCount);
+		case MARCHING_SQUARES:
+			return new ContourWithMarchingSquares(x, y, n, mode, threadsCount);
+		default:
+			return new ContourWithSynder(x, y, n, mode, threadsCount);
+		}
+	}
+
 	// kde2d =
 	// function (x, y, h, n = 25, lims = c(range(x), range(y)))
 	// {
@@ -54,6 +91,25 @@ public class KernelDensityEstimator2D implements ContourMaker {
 	 */
 	public KernelDensityEstimator2D(final double[] x, final double[] y,
 			final double[] h, final int n, final double[] lims) {
+		this(x, y, h, n, lims, KdeModeEnum.EXACT);
+	}
+
+	/*
+	 * @param mode how the estimate is evaluated on the grid
+	 */
+	public KernelDensityEstimator2D(final double[] x, final double[] y,
+			final double[] h, final int n, final double[] lims,
+			final KdeModeEnum mode) {
+		this(x, y, h, n, lims, mode, Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	/*
+	 * @param threadsCount threads evaluating the estimate
+	 */
+	public KernelDensityEstimator2D(final double[] x, final double[] y,
+			final double[] h, final int n, final double[] lims,
+			final KdeModeEnum mode, final int threadsCount) {
 		this.x = x;
 		this.y = y;
 		if (x.length != y.length)
@@ -76,6 +132,9 @@ public class KernelDensityEstimator2D implements ContourMaker {
 		else
 			setupH();
 
+		this.mode = mode;
+		this.threadsCount = threadsCount;
+
 		doKDE2D();
 	}
 
@@ -88,9 +147,28 @@ public class KernelDensityEstimator2D implements ContourMaker {
 		this(x, y, null, n, null);
 	}
 
+	public KernelDensityEstimator2D(final double[] x, final double[] y,
+			final int n, final KdeModeEnum mode) {
+		this(x, y, null, n, null, mode);
+	}
+
+	public KernelDensityEstimator2D(final double[] x, final double[] y,
+			final int n, final KdeModeEnum mode, final int threadsCount) {
+		this(x, y, null, n, null, mode, threadsCount);
+	}
+
 	public void doKDE2D() {
 		gx = makeSequence(lims[0], lims[1], n);
 		gy = makeSequence(lims[2], lims[3], n);
+
+		if (mode == KdeModeEnum.BINNED) {
+			z = BinnedKDE2D.estimate(x, y, h, gx, gy);
+			return;
+		} else if (mode == KdeModeEnum.TRUNCATED) {
+			z = TruncatedKDE2D.estimate(x, y, h, gx, gy, threadsCount);
+			return;
+		}
+
 		double[][] ax = outerMinusScaled(gx, x, h[0]);
 		double[][] ay = outerMinusScaled(gy, y, h[1]);
 		normalize(ax);
@@ -109,39 +187,156 @@ public class KernelDensityEstimator2D implements ContourMaker {
 	}
 
 	public double findLevelCorrespondingToMass(double probabilityMass) {
-		double level = 0;
+		return findLevelsCorrespondingToMasses(new double[] { probabilityMass })[0];
+	}
+
+	/*
+	 * Densities are bucketed by value and only the buckets where the
+	 * cumulative mass crosses 1 - probabilityMass are refined, so one pass
+	 * over the grid serves all levels and no full sort is needed
+	 */
+	public double[] findLevelsCorrespondingToMasses(double[] probabilityMasses) {
 		double[] sz = new double[n * n];
-		double[] c1 = new double[n * n];
 		for (int i = 0; i < n; i++)
 			System.arraycopy(z[i], 0, sz, i * n, n);
-		Arrays.sort(sz);
 		final double dx = gx[1] - gx[0];
 		final double dy = gy[1] - gy[0];
 		final double dxdy = dx * dy;
-		c1[0] = sz[0] * dxdy;
-		final double criticalValue = 1.0 - probabilityMass;
-		if (criticalValue < c1[0] || criticalValue >= 1.0)
-			throw new RuntimeException();
-		// do linearInterpolation on density (y) as function of cumulative sum
-		// (x)
-		for (int i = 1; i < n * n; i++) {
-			c1[i] = sz[i] * dxdy + c1[i - 1];
-			if (c1[i] > criticalValue) { // first largest point
-				final double diffC1 = c1[i] - c1[i - 1];
-				final double diffSz = sz[i] - sz[i - 1];
-				level = sz[i] - (c1[i] - criticalValue) / diffC1 * diffSz;
-				break;
+		final double minMass = DiscreteStatistics.min(sz) * dxdy;
+		double[] criticalValues = new double[probabilityMasses.length];
+		int[] pending = new int[probabilityMasses.length];
+		for (int k = 0; k < probabilityMasses.length; k++) {
+			criticalValues[k] = 1.0 - probabilityMasses[k];
+			if (criticalValues[k] < minMass || criticalValues[k] >= 1.0)
+				throw new RuntimeException();
+			pending[k] = k;
+		}
+		double[] levels = new double[probabilityMasses.length];
+		findLevels(sz, 0, Double.NaN, dxdy, criticalValues, pending, levels);
+		return levels;
+	}
+
+	/*
+	 * @param massBelow cumulative mass below the working set sz
+	 * 
+	 * @param valueBelow largest density below the working set
+	 * 
+	 * @param pending indices of the critical values crossed within sz
+	 */
+	private void findLevels(double[] sz, double massBelow, double valueBelow,
+			double dxdy, double[] criticalValues, int[] pending,
+			double[] levels) {
+
+		final double low = DiscreteStatistics.min(sz);
+		final double high = DiscreteStatistics.max(sz);
+
+		if (sz.length <= LEVEL_SORT_SIZE || low == high) {
+			Arrays.sort(sz);
+			for (int k : pending) {
+				levels[k] = interpolateLevel(sz, massBelow, valueBelow, dxdy,
+						criticalValues[k]);
 			}
+			return;
+		}
+
+		final int bucketsCount = sz.length / 4;
+		final double width = (high - low) / bucketsCount;
+		int[] bucketSize = new int[bucketsCount];
+		double[] bucketMass = new double[bucketsCount];
+		double[] bucketMax = new double[bucketsCount];
+		int[] bucket = new int[sz.length];
+		for (int i = 0; i < sz.length; i++) {
+			int b = Math.min((int) ((sz[i] - low) / width), bucketsCount - 1);
+			bucket[i] = b;
+			if (bucketSize[b] == 0 || sz[i] > bucketMax[b])
+				bucketMax[b] = sz[i];
+			bucketSize[b]++;
+			bucketMass[b] += sz[i] * dxdy;
+		}
+
+		// crossing bucket of every pending level
+		int[] crossing = new int[pending.length];
+		for (int p = 0; p < pending.length; p++) {
+			double criticalValue = criticalValues[pending[p]];
+			double cumulative = massBelow;
+			crossing[p] = -1;
+			for (int b = 0; b < bucketsCount; b++) {
+				cumulative += bucketMass[b];
+				if (cumulative > criticalValue) {
+					crossing[p] = b;
+					break;
+				}
+			}
+			if (crossing[p] < 0) // grid holds less mass than needed
+				levels[pending[p]] = 0;
+		}
+
+		double cumulative = massBelow;
+		double largest = valueBelow;
+		for (int b = 0; b < bucketsCount; b++) {
+
+			int crossedCount = 0;
+			for (int p = 0; p < pending.length; p++)
+				if (crossing[p] == b)
+					crossedCount++;
+
+			if (crossedCount > 0) {
+				int[] crossed = new int[crossedCount];
+				for (int p = 0, q = 0; p < pending.length; p++)
+					if (crossing[p] == b)
+						crossed[q++] = pending[p];
+
+				double[] refined = new double[bucketSize[b]];
+				for (int i = 0, j = 0; i < sz.length; i++) {
+					if (bucket[i] == b)
+						refined[j++] = sz[i];
+				}
+				findLevels(refined, cumulative, largest, dxdy, criticalValues,
+						crossed, levels);
+			}
+
+			cumulative += bucketMass[b];
+			if (bucketSize[b] > 0)
+				largest = bucketMax[b];
 		}
-		return level;
+	}
+
+	/*
+	 * Linear interpolation on density as function of the cumulative sum within
+	 * the sorted working set
+	 */
+	private double interpolateLevel(double[] sz, double massBelow,
+			double valueBelow, double dxdy, double criticalValue) {
+		double c1 = massBelow;
+		for (int i = 0; i < sz.length; i++) {
+			final double diffC1 = sz[i] * dxdy;
+			if (c1 + diffC1 > criticalValue) { // first largest point
+				final double previous = (i > 0) ? sz[i - 1] : valueBelow;
+				final double diffSz = sz[i] - previous;
+				return sz[i] - (c1 + diffC1 - criticalValue) / diffC1 * diffSz;
+			}
+			c1 += diffC1;
+		}
+		return 0;
 	}
 
 	public ContourPath[] getContourPaths(double hpdValue) {
+		return getContourPaths(new double[] { hpdValue })[0];
+	}
+
+	/*
+	 * All levels are traced in one sweep, paths are grouped by level in the
+	 * order of hpdValues
+	 */
+	public ContourPath[][] getContourPaths(double[] hpdValues) {
+
+		double[] thresholdDensities = findLevelsCorrespondingToMasses(hpdValues);
+		ContourAttrib[] attributes = new ContourAttrib[hpdValues.length];
+		for (int k = 0; k < hpdValues.length; k++)
+			attributes[k] = new ContourAttrib(thresholdDensities[k]);
 
-		double thresholdDensity = findLevelCorrespondingToMass(hpdValue);
 		ContourGenerator contour = new ContourGenerator(getXGrid(), getYGrid(),
-				getKDE(), new ContourAttrib[] { new ContourAttrib(
-						thresholdDensity) });
+				getKDE(), attributes);
 
 		ContourPath[] paths = null;
 		try {
@@ -149,7 +344,25 @@ public class KernelDensityEstimator2D implements ContourMaker {
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
-		return paths;
+		return groupByLevel(paths, hpdValues.length);
+	}
+
+	protected ContourPath[][] groupByLevel(ContourPath[] paths,
+			int levelsCount) {
+		int[] counts = new int[levelsCount];
+		if (paths != null)
+			for (ContourPath path : paths)
+				counts[path.getLevelIndex()]++;
+		ContourPath[][] grouped = new ContourPath[levelsCount][];
+		for (int k = 0; k < levelsCount; k++)
+			grouped[k] = new ContourPath[counts[k]];
+		int[] filled = new int[levelsCount];
+		if (paths != null)
+			for (ContourPath path : paths) {
+				int k = path.getLevelIndex();
+				grouped[k][filled[k]++] = path;
+			}
+		return grouped;
 	}
 
 	public double[][] getKDE() {
@@ -192,6 +405,8 @@ public class KernelDensityEstimator2D implements ContourMaker {
 	}
 
 	private double margin = 0.1;
+	// working sets this small are sorted when finding HPD levels
+	private static final int LEVEL_SORT_SIZE = 256;
 
 	private void setupLims() {
 		lims = new double[4];
@@ -224,19 +439,37 @@ public class KernelDensityEstimator2D implements ContourMaker {
 	// }
 	public double bandwidthNRD(double[] in) {
 
-		DoubleArrayList inList = new DoubleArrayList(in.length);
-		for (double d : in)
-			inList.add(d);
-		inList.sort();
-
-		final double h = (Descriptive.quantile(inList, 0.75) - Descriptive
-				.quantile(inList, 0.25)) / 1.34;
+		// quartiles by selection, interpolated as Descriptive.quantile
+		double[] work = in.clone();
+		final double lowerQuartile = quantile(work, 0.25, 0);
+		final double upperQuartile = quantile(work, 0.75,
+				(int) (0.25 * (work.length - 1)) + 1);
+		final double h = (upperQuartile - lowerQuartile) / 1.34;
 
 		return 4 * 1.06
 				* Math.min(Math.sqrt(DiscreteStatistics.variance(in)), h)
 				* Math.pow(in.length, -0.2);
 	}
 
+	/*
+	 * Entries of work before from must not be larger than the quantile
+	 */
+	private double quantile(double[] work, double phi, int from) {
+		final int length = work.length;
+		final double index = phi * (length - 1);
+		final int lhs = (int) index;
+		final double delta = index - lhs;
+		final double value = DiscreteStatistics.select(work, lhs,
+				Math.min(from, lhs), length);
+		if (lhs == length - 1 || delta == 0)
+			return value;
+		// next order statistic is the smallest entry above
+		double next = work[lhs + 1];
+		for (int i = lhs + 2; i < length; i++)
+			next = Math.min(next, work[i]);
+		return (1 - delta) * value + delta * next;
+	}
+
 	public static void main(String[] arg) {
 
 		double[] x = { 3.4, 1.2, 5.6, 2.2, 3.1 };
@@ -264,5 +497,7 @@ public class KernelDensityEstimator2D implements ContourMaker {
 	private double[] gx; // x-grid points
 	private double[] gy; // y-grid points
 	private double[][] z; // KDE estimate;
+	private KdeModeEnum mode; // KDE evaluation
+	private int threadsCount; // threads evaluating the estimate
 
 }
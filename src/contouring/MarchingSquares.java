@@ -0,0 +1,344 @@
+package contouring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Marching squares contour tracer. The grid is padded with a ring of nodes
+ * below every level and sharing the coordinates of the boundary nodes, so
+ * contours running off the grid are closed along its boundary and every path
+ * returned is a closed ring. Saddle cells are resolved by the value at the
+ * cell center. Points are written straight into primitive buffers.
+ */
+public class MarchingSquares {
+
+	// local edges of a cell
+	private static final int BOTTOM = 0;
+	private static final int RIGHT = 1;
+	private static final int TOP = 2;
+	private static final int LEFT = 3;
+
+	private final int xSize; // padded grid size
+	private final int ySize;
+	private final double[] px; // padded grid points
+	private final double[] py;
+	private final double[][] pz; // padded grid values
+
+	// edges: horizontal (i,j)-(i+1,j) first, then vertical (i,j)-(i,j+1)
+	private final int verticalOffset;
+	private final boolean[] visited;
+	private boolean[][] above;
+	private double level;
+
+	/*
+	 * @param gx x-grid points
+	 *
+	 * @param gy y-grid points
+	 *
+	 * @param z values at the grid points, indexed [x][y]
+	 */
+	public MarchingSquares(double[] gx, double[] gy, double[][] z) {
+
+		int n = gx.length;
+		int m = gy.length;
+		xSize = n + 2;
+		ySize = m + 2;
+
+		px = new double[xSize];
+		py = new double[ySize];
+		System.arraycopy(gx, 0, px, 1, n);
+		System.arraycopy(gy, 0, py, 1, m);
+		px[0] = gx[0];
+		px[xSize - 1] = gx[n - 1];
+		py[0] = gy[0];
+		py[ySize - 1] = gy[m - 1];
+
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < m; j++) {
+				min = Math.min(min, z[i][j]);
+			}
+		}
+
+		pz = new double[xSize][ySize];
+		for (int i = 0; i < xSize; i++) {
+			for (int j = 0; j < ySize; j++) {
+				boolean border = (i == 0 || j == 0
+						|| i == xSize - 1 || j == ySize - 1);
+				pz[i][j] = border ? min - 1 : z[i - 1][j - 1];
+			}
+		}
+
+		verticalOffset = (xSize - 1) * ySize;
+		visited = new boolean[verticalOffset + xSize * (ySize - 1)];
+
+	}// END: MarchingSquares()
+
+	/*
+	 * Closed rings around the regions above level, the first point of each
+	 * ring is repeated at its end
+	 */
+	public ContourPath[] getContourPaths(double level, int levelIndex) {
+
+		this.level = level;
+
+		ContourAttrib attribute = new ContourAttrib(level);
+		List<ContourPath> paths = new ArrayList<ContourPath>();
+
+		above = new boolean[xSize][ySize];
+		for (int i = 0; i < xSize; i++) {
+			for (int j = 0; j < ySize; j++) {
+				above[i][j] = pz[i][j] > level;
+			}
+		}
+		Arrays.fill(visited, false);
+
+		PathBuffer buffer = new PathBuffer();
+		for (int edge = 0; edge < visited.length; edge++) {
+
+			if (!visited[edge] && isCrossed(edge)) {
+
+				buffer.clear();
+				trace(edge, buffer);
+				// at least a triangle and its closing point
+				if (buffer.size > 3) {
+					paths.add(buffer.toPath(attribute, levelIndex));
+				}
+
+			}
+		}// END: edges loop
+
+		return paths.toArray(new ContourPath[paths.size()]);
+	}// END: getContourPaths
+
+	private void trace(int startEdge, PathBuffer buffer) {
+
+		// enter the cell above or right of the start edge
+		int ci;
+		int cj;
+		int entry;
+		if (startEdge < verticalOffset) {
+			ci = startEdge % (xSize - 1);
+			cj = startEdge / (xSize - 1);
+			entry = BOTTOM;
+		} else {
+			ci = (startEdge - verticalOffset) % xSize;
+			cj = (startEdge - verticalOffset) / xSize;
+			entry = LEFT;
+		}
+
+		visited[startEdge] = true;
+		addPoint(startEdge, buffer);
+
+		while (true) {
+
+			int exit = partner(ci, cj, entry);
+			int exitEdge = edgeId(ci, cj, exit);
+			if (exitEdge == startEdge) {
+				break;
+			}
+
+			visited[exitEdge] = true;
+			addPoint(exitEdge, buffer);
+
+			// step into the neighbouring cell
+			switch (exit) {
+			case BOTTOM:
+				cj--;
+				entry = TOP;
+				break;
+			case RIGHT:
+				ci++;
+				entry = LEFT;
+				break;
+			case TOP:
+				cj++;
+				entry = BOTTOM;
+				break;
+			default:
+				ci--;
+				entry = RIGHT;
+				break;
+			}
+		}// END: cells loop
+
+		buffer.close();
+
+	}// END: trace
+
+	/*
+	 * Local edge joined to the entry edge inside cell (ci, cj)
+	 */
+	private int partner(int ci, int cj, int entry) {
+
+		boolean a = above[ci][cj];
+		boolean b = above[ci + 1][cj];
+		boolean c = above[ci + 1][cj + 1];
+		boolean d = above[ci][cj + 1];
+
+		boolean[] crossed = { a != b, b != c, d != c, a != d };
+
+		if (crossed[BOTTOM] && crossed[RIGHT] && crossed[TOP] && crossed[LEFT]) {
+
+			// saddle, isolate the corners unlike the center
+			double center = (pz[ci][cj] + pz[ci + 1][cj]
+					+ pz[ci + 1][cj + 1] + pz[ci][cj + 1]) / 4;
+			boolean isolateBD = (center > level) == a;
+
+			if (isolateBD) {
+				// pairs around b and d
+				switch (entry) {
+				case BOTTOM:
+					return RIGHT;
+				case RIGHT:
+					return BOTTOM;
+				case TOP:
+					return LEFT;
+				default:
+					return TOP;
+				}
+			} else {
+				// pairs around a and c
+				switch (entry) {
+				case BOTTOM:
+					return LEFT;
+				case LEFT:
+					return BOTTOM;
+				case RIGHT:
+					return TOP;
+				default:
+					return RIGHT;
+				}
+			}
+
+		}// END: saddle check
+
+		for (int edge = 0; edge < 4; edge++) {
+			if (edge != entry && crossed[edge]) {
+				return edge;
+			}
+		}
+
+		throw new RuntimeException("Contour does not leave the cell");
+	}// END: partner
+
+	private int edgeId(int ci, int cj, int local) {
+
+		switch (local) {
+		case BOTTOM:
+			return ci + cj * (xSize - 1);
+		case TOP:
+			return ci + (cj + 1) * (xSize - 1);
+		case LEFT:
+			return verticalOffset + ci + cj * xSize;
+		default:
+			return verticalOffset + ci + 1 + cj * xSize;
+		}
+
+	}// END: edgeId
+
+	private boolean isCrossed(int edge) {
+
+		if (edge < verticalOffset) {
+			int i = edge % (xSize - 1);
+			int j = edge / (xSize - 1);
+			return above[i][j] != above[i + 1][j];
+		} else {
+			int i = (edge - verticalOffset) % xSize;
+			int j = (edge - verticalOffset) / xSize;
+			return above[i][j] != above[i][j + 1];
+		}
+
+	}// END: isCrossed
+
+	private void addPoint(int edge, PathBuffer buffer) {
+
+		int i1, j1, i2, j2;
+		if (edge < verticalOffset) {
+			i1 = edge % (xSize - 1);
+			j1 = edge / (xSize - 1);
+			i2 = i1 + 1;
+			j2 = j1;
+		} else {
+			i1 = (edge - verticalOffset) % xSize;
+			j1 = (edge - verticalOffset) / xSize;
+			i2 = i1;
+			j2 = j1 + 1;
+		}
+
+		double z1 = pz[i1][j1];
+		double z2 = pz[i2][j2];
+		double t = (level - z1) / (z2 - z1);
+
+		buffer.add(px[i1] + t * (px[i2] - px[i1]), py[j1] + t
+				* (py[j2] - py[j1]));
+
+	}// END: addPoint
+
+	/*
+	 * Growable primitive x/y buffer
+	 */
+	private static class PathBuffer {
+
+		private double[] x = new double[64];
+		private double[] y = new double[64];
+		private int size;
+
+		private void clear() {
+			size = 0;
+		}
+
+		private void add(double xValue, double yValue) {
+
+			// padding collapses onto boundary nodes, skip repeated points
+			if (size > 0 && x[size - 1] == xValue && y[size - 1] == yValue) {
+				return;
+			}
+
+			append(xValue, yValue);
+
+		}// END: add
+
+		private void close() {
+
+			// drop a trailing duplicate of the first point, then repeat it
+			if (size > 1 && x[size - 1] == x[0] && y[size - 1] == y[0]) {
+				size--;
+			}
+			if (size > 0) {
+				append(x[0], y[0]);
+			}
+
+		}// END: close
+
+		private void append(double xValue, double yValue) {
+
+			if (size == x.length) {
+				double[] temp = new double[size << 1];
+				System.arraycopy(x, 0, temp, 0, size);
+				x = temp;
+				temp = new double[size << 1];
+				System.arraycopy(y, 0, temp, 0, size);
+				y = temp;
+			}
+
+			x[size] = xValue;
+			y[size] = yValue;
+			size++;
+
+		}// END: append
+
+		private ContourPath toPath(ContourAttrib attribute, int levelIndex) {
+
+			double[] xArr = new double[size];
+			double[] yArr = new double[size];
+			System.arraycopy(x, 0, xArr, 0, size);
+			System.arraycopy(y, 0, yArr, 0, size);
+
+			return new ContourPath(attribute, levelIndex, xArr, yArr);
+		}// END: toPath
+
+	}// END: PathBuffer class
+
+}// END: class
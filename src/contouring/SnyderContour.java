@@ -51,6 +51,8 @@ public class SnyderContour {
 	double prevXY[] = new double[2];
 	float cv[] = new float[ncv];
 	boolean jump;
+	// contour index of every path started, when requested
+	List<Integer> pathLevels;
 
 	// -------------------------------------------------------
 	// A constructor method.
@@ -136,6 +138,8 @@ public class SnyderContour {
 			LinkedList<Point2D> path = new LinkedList<Point2D>();
 			path.add(new Point2D.Double(u, v));
 			allPaths.add(path);
+			if (pathLevels != null)
+				pathLevels.add(cntrIndex);
 		}
 		prevXY[0] = xy[0];
 		prevXY[1] = xy[1];
@@ -402,9 +406,21 @@ public class SnyderContour {
 
 	void ContourKernel(double[][] data, List<LinkedList<Point2D>> allPaths,
 			double level) {
+		ContourKernel(data, allPaths, null, new double[] { level });
+	}
+
+	// -------------------------------------------------------
+	// Traces all levels in one sweep, the index into levels
+	// of every path is added to pathLevels unless null.
+	// -------------------------------------------------------
+	void ContourKernel(double[][] data, List<LinkedList<Point2D>> allPaths,
+			List<Integer> pathLevels, double[] levels) {
 
-		ncv = 1;
-		cv[0] = (float) level;
+		ncv = levels.length;
+		cv = new float[ncv];
+		for (int i = 0; i < ncv; i++)
+			cv[i] = (float) levels[i];
+		this.pathLevels = pathLevels;
 
 		int workLength = 2 * xSteps * ySteps * ncv;
 		boolean workSpace[]; // Allocate below if data valid
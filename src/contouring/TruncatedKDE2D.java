@@ -0,0 +1,239 @@
+package contouring;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import math.NormalDistribution;
+
+/**
+ * Bi-variate Gaussian kernel density estimate on a grid, summing only the
+ * observations within CUTOFF bandwidths of each grid point. The kernel is
+ * separable, so every observation adds the outer product of its x and y kernel
+ * windows to the grid. Grid rows are split into bands which are filled in
+ * parallel, each band only visiting the observations bucketed near it. The
+ * dropped tail is below 1e-10 of the kernel peak.
+ */
+public class TruncatedKDE2D {
+
+	// kernel cut off, in bandwidths
+	private static final double CUTOFF = 7.0;
+	// grid rows filled by one task
+	private static final int BAND_ROWS = 16;
+
+	/*
+	 * @param x x-coordinates of observations
+	 *
+	 * @param y y-coordinates of observations
+	 *
+	 * @param h bi-variate smoothing bandwidths
+	 *
+	 * @param gx x-grid points, equally spaced
+	 *
+	 * @param gy y-grid points, equally spaced
+	 *
+	 * @param threadsCount number of threads filling the grid
+	 *
+	 * @return density at the grid points, indexed [x][y]
+	 */
+	public static double[][] estimate(double[] x, double[] y, double[] h,
+			double[] gx, double[] gy, int threadsCount) {
+
+		final Window window = new Window(x, y, h, gx, gy);
+		final double[][] z = new double[gx.length][gy.length];
+
+		int bandsCount = (gx.length + BAND_ROWS - 1) / BAND_ROWS;
+
+		if (threadsCount <= 1 || bandsCount == 1) {
+
+			for (int band = 0; band < bandsCount; band++) {
+				window.fillBand(z, band * BAND_ROWS);
+			}
+
+		} else {
+
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+					threadsCount, bandsCount));
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+			for (int band = 0; band < bandsCount; band++) {
+
+				final int firstRow = band * BAND_ROWS;
+				futures.add(executor.submit(new Callable<Void>() {
+
+					public Void call() {
+						window.fillBand(z, firstRow);
+						return null;
+					}
+
+				}));
+
+			}// END: bands loop
+
+			executor.shutdown();
+
+			try {
+
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+
+			} catch (InterruptedException e) {
+
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while estimating density!");
+
+			} catch (ExecutionException e) {
+
+				executor.shutdownNow();
+				throw new RuntimeException(e.getCause());
+
+			}// END: try-catch
+		}// END: threads check
+
+		return z;
+	}// END: estimate
+
+	/*
+	 * Observations bucketed by the first grid row their kernel reaches
+	 */
+	private static class Window {
+
+		private final double[] x;
+		private final double[] y;
+		private final double[] gx;
+		private final double[] gy;
+		private final double h0;
+		private final double h1;
+		private final double scale;
+
+		// kernel reach in grid rows
+		private final int rowsReach;
+		// observation indices ordered by bucket, bucket starts
+		private final int[] order;
+		private final int[] bucketStart;
+		private final int[] firstRow;
+		private final int[] lastRow;
+
+		private Window(double[] x, double[] y, double[] h, double[] gx,
+				double[] gy) {
+
+			this.x = x;
+			this.y = y;
+			this.gx = gx;
+			this.gy = gy;
+			this.h0 = h[0];
+			this.h1 = h[1];
+			this.scale = x.length * h[0] * h[1];
+
+			int n = gx.length;
+			double dx = gx[1] - gx[0];
+			double dy = gy[1] - gy[0];
+			double cutX = CUTOFF * h0;
+			double cutY = CUTOFF * h1;
+
+			rowsReach = (int) Math.ceil(2 * cutX / dx) + 1;
+
+			firstRow = new int[x.length];
+			lastRow = new int[x.length];
+			bucketStart = new int[n + 1];
+
+			for (int k = 0; k < x.length; k++) {
+
+				double first = Math.ceil((x[k] - cutX - gx[0]) / dx);
+				double last = Math.floor((x[k] + cutX - gx[0]) / dx);
+				double firstColumn = Math.ceil((y[k] - cutY - gy[0]) / dy);
+				double lastColumn = Math.floor((y[k] + cutY - gy[0]) / dy);
+
+				if (last < 0 || first > n - 1 || lastColumn < 0
+						|| firstColumn > gy.length - 1) {
+					// never reaches the grid
+					firstRow[k] = -1;
+					continue;
+				}
+
+				firstRow[k] = (int) Math.max(first, 0);
+				lastRow[k] = (int) Math.min(last, n - 1);
+				bucketStart[firstRow[k] + 1]++;
+
+			}// END: observations loop
+
+			for (int i = 0; i < n; i++) {
+				bucketStart[i + 1] += bucketStart[i];
+			}
+
+			order = new int[bucketStart[n]];
+			int[] position = new int[n];
+			System.arraycopy(bucketStart, 0, position, 0, n);
+			for (int k = 0; k < x.length; k++) {
+				if (firstRow[k] >= 0) {
+					order[position[firstRow[k]]++] = k;
+				}
+			}
+
+		}// END: Window()
+
+		/*
+		 * Fills rows [from, from + BAND_ROWS), only writes to these rows
+		 */
+		private void fillBand(double[][] z, int from) {
+
+			int n = gx.length;
+			int m = gy.length;
+			int to = Math.min(from + BAND_ROWS, n);
+			double dy = gy[1] - gy[0];
+			double cutY = CUTOFF * h1;
+
+			double[] kernelY = new double[m];
+
+			int begin = bucketStart[Math.max(from - rowsReach, 0)];
+			int end = bucketStart[to];
+
+			for (int index = begin; index < end; index++) {
+
+				int k = order[index];
+				int rowFirst = Math.max(firstRow[k], from);
+				int rowLast = Math.min(lastRow[k], to - 1);
+				if (rowFirst > rowLast) {
+					continue;
+				}
+
+				int columnFirst = (int) Math.max(
+						Math.ceil((y[k] - cutY - gy[0]) / dy), 0);
+				int columnLast = (int) Math.min(
+						Math.floor((y[k] + cutY - gy[0]) / dy), m - 1);
+
+				for (int j = columnFirst; j <= columnLast; j++) {
+					kernelY[j] = NormalDistribution.pdf((gy[j] - y[k]) / h1,
+							0, 1);
+				}
+
+				for (int i = rowFirst; i <= rowLast; i++) {
+
+					double kernelX = NormalDistribution.pdf((gx[i] - x[k])
+							/ h0, 0, 1);
+					double[] row = z[i];
+					for (int j = columnFirst; j <= columnLast; j++) {
+						row[j] += kernelX * kernelY[j];
+					}
+
+				}// END: rows loop
+			}// END: observations loop
+
+			for (int i = from; i < to; i++) {
+				double[] row = z[i];
+				for (int j = 0; j < m; j++) {
+					row[j] /= scale;
+				}
+			}
+
+		}// END: fillBand
+
+	}// END: Window class
+
+}// END: class
@@ -6,6 +6,7 @@ import java.util.Collection;
 
 import structure.Layer;
 import structure.TimeLine;
+import utils.GeoIntermediate.NavigationEnum;
 
 /**
  * @author Andrew Rambaut
@@ -14,4 +15,6 @@ import structure.TimeLine;
 public interface Generator {
 	public void generate(PrintWriter writer, final TimeLine timeLine,
 			final Collection<Layer> layers) throws IOException;
+
+	public void setNavigation(NavigationEnum navigation);
 }
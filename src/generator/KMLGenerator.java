@@ -34,16 +34,19 @@ import structure.Polygon;
 import structure.Style;
 import structure.TimeLine;
 import utils.GeoIntermediate;
+import utils.GeoIntermediate.NavigationEnum;
 import utils.Utils;
 
 public class KMLGenerator implements Generator {
 
 	private List<StyleSelector> styles = new ArrayList<StyleSelector>();
+	private StyleTable styleTable = new StyleTable();
 	private TimeLine timeLine;
 	private SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd",
 			Locale.US);
 	private Document document = new Document();
-	private GeoIntermediate rhumbIntermediate;
+	private GeoIntermediate geoIntermediate;
+	private NavigationEnum navigation = NavigationEnum.RHUMB;
 
 	// 01-01-01 in millis before 1970-01-01
 	private static final double YearZeroInMillis = -62135773200000.0;
@@ -51,6 +54,10 @@ public class KMLGenerator implements Generator {
 	public KMLGenerator() {
 	}
 
+	public void setNavigation(NavigationEnum navigation) {
+		this.navigation = navigation;
+	}
+
 	public void generate(PrintWriter writer, final TimeLine timeLine,
 			final Collection<Layer> layers) throws IOException {
 
@@ -68,6 +75,9 @@ public class KMLGenerator implements Generator {
 			document.addFeature(generateLayer(layer));
 		}
 
+		// every distinct style once
+		document.setStyleSelectors(styles);
+
 		// We generate the kml file
 		try {
 			kml.createKml(writer);
@@ -114,13 +124,18 @@ public class KMLGenerator implements Generator {
 
 		// Style
 		Style style = polygon.getPolyStyle();
-		PolyStyle polyStyle = new PolyStyle();
-		polyStyle.setOutline(false);
-		polyStyle.setColor(Utils.getKMLColor(style.getStrokeColor()));
-		style.setPolyStyle(polyStyle);
-		styles.add(style);
-		placemark.setStyleUrl(style.getId());
-		document.setStyleSelectors(styles);
+		String styleId = styleTable.lookup(style, true);
+		if (styleId == null) {
+			styleId = styleTable.add(style, true);
+			PolyStyle polyStyle = new PolyStyle();
+			polyStyle.setOutline(false);
+			polyStyle.setColor(Utils.getKMLColor(style.getStrokeColor()));
+			org.boehn.kmlframework.kml.Style sharedStyle = new org.boehn.kmlframework.kml.Style();
+			sharedStyle.setId(styleId);
+			sharedStyle.setPolyStyle(polyStyle);
+			styles.add(sharedStyle);
+		}
+		placemark.setStyleUrl(styleId);
 
 		// Time
 		// Parse minus if date is BC
@@ -178,28 +193,30 @@ public class KMLGenerator implements Generator {
 
 				int sliceCount = timeLine.getSliceCount();
 
-				rhumbIntermediate = new GeoIntermediate(startLon, startLat,
-						endLon, endLat, sliceCount);
-				double coords[][] = rhumbIntermediate.getCoords();
-
-				double a = -2 * maxAltitude
-						/ (Math.pow(sliceCount, 2) - sliceCount);
-				double b = 2 * maxAltitude / (sliceCount - 1);
+				// one buffer for all lines of this slice count
+				if (geoIntermediate == null
+						|| geoIntermediate.getSliceCount() != sliceCount
+						|| geoIntermediate.getNavigation() != navigation) {
+					geoIntermediate = new GeoIntermediate(sliceCount,
+							navigation);
+				}
+				double path[] = geoIntermediate.interpolate(startLon,
+						startLat, endLon, endLat);
 
 				for (int i = 0; i < sliceCount; i++) {
 
-					double startAltitude = a * Math.pow((double) i, 2) + b
-							* (double) i;
-					double endAltitude = a * Math.pow((double) (i + 1), 2) + b
-							* (double) (i + 1);
+					double startAltitude = geoIntermediate.getAltitude(i,
+							maxAltitude);
+					double endAltitude = geoIntermediate.getAltitude(i + 1,
+							maxAltitude);
 
 					double segmentStartTime = endTime - (i + 1)
 							* ((endTime - startTime) / sliceCount);
 
 					Placemark lineSegment = generateLineSegment(
-							new Coordinates(coords[i][0], coords[i][1],
+							new Coordinates(path[2 * i], path[2 * i + 1],
 									startAltitude),// startCoordinates
-							new Coordinates(coords[i + 1][0], coords[i + 1][1],
+							new Coordinates(path[2 * i + 2], path[2 * i + 3],
 									endAltitude),// endCoordinates
 							segmentStartTime,// startTime
 							duration,// duration
@@ -231,14 +248,17 @@ public class KMLGenerator implements Generator {
 			Coordinates endCoordinates, double startTime, double duration,
 			Style style) {
 
-		LineStyle lineStyle = new LineStyle();
-		lineStyle.setColor(Utils.getKMLColor(style.getStrokeColor()));
-		lineStyle.setWidth(style.getStrokeWidth());
-
-		style.setLineStyle(lineStyle);
-
-		styles.add(style);
-		document.setStyleSelectors(styles);
+		String styleId = styleTable.lookup(style, false);
+		if (styleId == null) {
+			styleId = styleTable.add(style, false);
+			LineStyle lineStyle = new LineStyle();
+			lineStyle.setColor(Utils.getKMLColor(style.getStrokeColor()));
+			lineStyle.setWidth(style.getStrokeWidth());
+			org.boehn.kmlframework.kml.Style sharedStyle = new org.boehn.kmlframework.kml.Style();
+			sharedStyle.setId(styleId);
+			sharedStyle.setLineStyle(lineStyle);
+			styles.add(sharedStyle);
+		}
 
 		LineString lineString = new LineString();
 		lineString.setTessellate(true);
@@ -266,7 +286,7 @@ public class KMLGenerator implements Generator {
 			placemark.setTimePrimitive(timePrimitive);
 		}
 
-		placemark.setStyleUrl(style.getId());
+		placemark.setStyleUrl(styleId);
 		placemark.setGeometry(lineString);
 		return placemark;
 
@@ -0,0 +1,444 @@
+package generator;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Streams a single KML document into a KMZ (zip) archive. Input is cut into
+ * blocks which are deflated in parallel, pigz-style: every block is primed
+ * with the last 32 KB of the previous one as dictionary and ends on a sync
+ * flush, so the blocks written in order make up one deflate stream. Only a
+ * bounded number of blocks is held in memory. Entries are limited to 4 GB
+ * (no Zip64). The flushing deflate call is Java 7 API and is looked up at
+ * run time, on Java 6 the blocks are deflated in turn on the writing thread
+ * by one Deflater.
+ * */
+
+public class KMZOutputStream extends OutputStream {
+
+	public static final String ENTRY_NAME = "doc.kml";
+
+	private static final int BLOCK_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	// blocks compressed ahead of the writer, per thread
+	private static final int PENDING_PER_THREAD = 4;
+	private static final long MAX_SIZE = 0xFFFFFFFFL;
+	// Deflater.SYNC_FLUSH, not defined before Java 7
+	private static final int SYNC_FLUSH = 2;
+	// Deflater.deflate(byte[], int, int, int), null before Java 7
+	private static final Method SYNC_DEFLATE = getSyncDeflate();
+
+	private final OutputStream out;
+	private final byte[] name;
+	private final int dosTime;
+	private final ExecutorService executor;
+	private final int maxPending;
+	private final LinkedList<Future<byte[]>> pending =
+			new LinkedList<Future<byte[]>>();
+	private final CRC32 crc = new CRC32();
+	// whole stream when blocks cannot be deflated in parallel
+	private final Deflater serialDeflater;
+
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockSize = 0;
+	private byte[] previousBlock = null;
+
+	private long uncompressedSize = 0;
+	private long compressedSize = 0;
+	private long headerSize = 0;
+	private boolean closed = false;
+
+	/*
+	 * @param out archive destination, closed with this stream
+	 *
+	 * @param entryName name of the KML file inside the archive
+	 *
+	 * @param threadsCount number of threads deflating blocks
+	 */
+	public KMZOutputStream(OutputStream out, String entryName, int threadsCount)
+			throws IOException {
+
+		this.out = out;
+		this.name = entryName.getBytes(Charset.forName("UTF-8"));
+		this.dosTime = getDosTime(System.currentTimeMillis());
+
+		int threads = Math.max(threadsCount, 1);
+		this.executor = SYNC_DEFLATE == null ? null : Executors
+				.newFixedThreadPool(threads);
+		this.maxPending = threads * PENDING_PER_THREAD;
+		this.serialDeflater = SYNC_DEFLATE == null ? new Deflater(
+				Deflater.DEFAULT_COMPRESSION, true) : null;
+
+		writeLocalHeader();
+
+	}// END: KMZOutputStream()
+
+	/*
+	 * UTF-8 writer into a new KMZ file, deflating on all available cores
+	 * */
+	public static PrintWriter createWriter(String path)
+			throws FileNotFoundException {
+
+		try {
+
+			KMZOutputStream kmz = new KMZOutputStream(
+					new BufferedOutputStream(new FileOutputStream(path)),
+					ENTRY_NAME, Runtime.getRuntime().availableProcessors());
+
+			return new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+					kmz, Charset.forName("UTF-8"))));
+
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			FileNotFoundException exception = new FileNotFoundException(
+					"Cannot write KMZ header to " + path);
+			exception.initCause(e);
+			throw exception;
+		}
+
+	}// END: createWriter
+
+	@Override
+	public void write(int b) throws IOException {
+
+		ensureOpen();
+		block[blockSize++] = (byte) b;
+		if (blockSize == BLOCK_SIZE) {
+			submitBlock(false);
+		}
+
+	}// END: write
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		ensureOpen();
+		while (len > 0) {
+
+			int count = Math.min(len, BLOCK_SIZE - blockSize);
+			System.arraycopy(b, off, block, blockSize, count);
+			blockSize += count;
+			off += count;
+			len -= count;
+
+			if (blockSize == BLOCK_SIZE) {
+				submitBlock(false);
+			}
+
+		}// END: input loop
+
+	}// END: write
+
+	@Override
+	public void close() throws IOException {
+
+		if (closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+
+			submitBlock(true);
+			while (!pending.isEmpty()) {
+				writeBlock(pending.removeFirst());
+			}
+
+			if (uncompressedSize > MAX_SIZE || compressedSize > MAX_SIZE) {
+				throw new IOException(
+						"KMZ entries above 4 GB are not supported!");
+			}
+
+			writeDataDescriptor();
+			writeCentralDirectory();
+
+		} finally {
+
+			if (executor != null) {
+				executor.shutdownNow();
+			} else {
+				serialDeflater.end();
+			}
+			out.close();
+
+		}// END: try-finally
+
+	}// END: close
+
+	private void submitBlock(final boolean last) throws IOException {
+
+		final byte[] input = block;
+		final int inputSize = blockSize;
+		final byte[] dictionary = previousBlock;
+
+		crc.update(input, 0, inputSize);
+		uncompressedSize += inputSize;
+
+		if (executor == null) {
+
+			writeCompressed(deflate(serialDeflater, input, inputSize, last));
+			blockSize = 0;
+			return;
+
+		}
+
+		pending.add(executor.submit(new Callable<byte[]>() {
+
+			public byte[] call() {
+				return deflate(input, inputSize, dictionary, last);
+			}
+
+		}));
+
+		// the submitted block is now read by the task, never reuse it
+		previousBlock = input;
+		block = new byte[BLOCK_SIZE];
+		blockSize = 0;
+
+		while (pending.size() > maxPending) {
+			writeBlock(pending.removeFirst());
+		}
+
+	}// END: submitBlock
+
+	private static byte[] deflate(byte[] input, int inputSize,
+			byte[] dictionary, boolean last) {
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+				inputSize / 4 + 64);
+		byte[] buffer = new byte[16 * 1024];
+
+		try {
+
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary, dictionary.length
+						- DICTIONARY_SIZE, DICTIONARY_SIZE);
+			}
+
+			deflater.setInput(input, 0, inputSize);
+
+			if (last) {
+
+				deflater.finish();
+				while (!deflater.finished()) {
+					int count = deflater.deflate(buffer);
+					compressed.write(buffer, 0, count);
+				}
+
+			} else {
+
+				// a full output buffer may hide more flushed output
+				int count;
+				do {
+					count = syncDeflate(deflater, buffer);
+					compressed.write(buffer, 0, count);
+				} while (count == buffer.length);
+
+			}// END: last check
+
+		} finally {
+			deflater.end();
+		}
+
+		return compressed.toByteArray();
+	}// END: deflate
+
+	/*
+	 * Next part of a single deflate stream, without flushing unless last
+	 */
+	private static byte[] deflate(Deflater deflater, byte[] input,
+			int inputSize, boolean last) {
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+				inputSize / 4 + 64);
+		byte[] buffer = new byte[16 * 1024];
+
+		deflater.setInput(input, 0, inputSize);
+		if (last) {
+			deflater.finish();
+		}
+
+		while (last ? !deflater.finished() : !deflater.needsInput()) {
+			int count = deflater.deflate(buffer);
+			compressed.write(buffer, 0, count);
+		}
+
+		return compressed.toByteArray();
+	}// END: deflate
+
+	private static int syncDeflate(Deflater deflater, byte[] buffer) {
+
+		try {
+
+			return (Integer) SYNC_DEFLATE.invoke(deflater, buffer, 0,
+					buffer.length, SYNC_FLUSH);
+
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException(e.getCause());
+		}
+
+	}// END: syncDeflate
+
+	private static Method getSyncDeflate() {
+
+		try {
+
+			return Deflater.class.getMethod("deflate", byte[].class,
+					int.class, int.class, int.class);
+
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+
+	}// END: getSyncDeflate
+
+	private void writeBlock(Future<byte[]> future) throws IOException {
+
+		byte[] compressed;
+		try {
+
+			compressed = future.get();
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing KMZ!");
+
+		} catch (ExecutionException e) {
+
+			throw new IOException(e.getCause());
+
+		}// END: try-catch
+
+		writeCompressed(compressed);
+
+	}// END: writeBlock
+
+	private void writeCompressed(byte[] compressed) throws IOException {
+
+		out.write(compressed);
+		compressedSize += compressed.length;
+
+	}// END: writeCompressed
+
+	private void writeLocalHeader() throws IOException {
+
+		writeInt(0x04034b50);
+		writeShort(20); // version needed to extract
+		writeShort(0x0008); // sizes follow the data
+		writeShort(8); // deflated
+		writeInt(dosTime);
+		writeInt(0); // crc
+		writeInt(0); // compressed size
+		writeInt(0); // uncompressed size
+		writeShort(name.length);
+		writeShort(0); // extra field length
+		out.write(name);
+
+		headerSize = 30 + name.length;
+
+	}// END: writeLocalHeader
+
+	private void writeDataDescriptor() throws IOException {
+
+		writeInt(0x08074b50);
+		writeInt((int) crc.getValue());
+		writeInt((int) compressedSize);
+		writeInt((int) uncompressedSize);
+
+	}// END: writeDataDescriptor
+
+	private void writeCentralDirectory() throws IOException {
+
+		long directoryOffset = headerSize + compressedSize + 16;
+
+		writeInt(0x02014b50);
+		writeShort(20); // version made by
+		writeShort(20); // version needed to extract
+		writeShort(0x0008);
+		writeShort(8);
+		writeInt(dosTime);
+		writeInt((int) crc.getValue());
+		writeInt((int) compressedSize);
+		writeInt((int) uncompressedSize);
+		writeShort(name.length);
+		writeShort(0); // extra field length
+		writeShort(0); // comment length
+		writeShort(0); // disk number
+		writeShort(0); // internal attributes
+		writeInt(0); // external attributes
+		writeInt(0); // local header offset
+		out.write(name);
+
+		long directorySize = 46 + name.length;
+
+		if (directoryOffset > MAX_SIZE) {
+			throw new IOException("KMZ archives above 4 GB are not supported!");
+		}
+
+		writeInt(0x06054b50);
+		writeShort(0); // disk number
+		writeShort(0); // directory disk
+		writeShort(1); // entries on disk
+		writeShort(1); // entries
+		writeInt((int) directorySize);
+		writeInt((int) directoryOffset);
+		writeShort(0); // comment length
+
+	}// END: writeCentralDirectory
+
+	private void writeShort(int value) throws IOException {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+	}// END: writeShort
+
+	private void writeInt(int value) throws IOException {
+		writeShort(value & 0xFFFF);
+		writeShort((value >>> 16) & 0xFFFF);
+	}// END: writeInt
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+	}// END: ensureOpen
+
+	private static int getDosTime(long millis) {
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+
+		int year = Math.max(calendar.get(Calendar.YEAR), 1980);
+
+		return ((year - 1980) << 25)
+				| ((calendar.get(Calendar.MONTH) + 1) << 21)
+				| (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+				| (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+				| (calendar.get(Calendar.MINUTE) << 5)
+				| (calendar.get(Calendar.SECOND) >> 1);
+	}// END: getDosTime
+
+}// END: class
@@ -0,0 +1,101 @@
+package generator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import structure.Layer;
+import structure.TimeLine;
+
+/*
+ * Hands finished layers to a Generator in the order they are added. With a
+ * StreamingGenerator every layer is written as soon as it is added and
+ * dropped, so the caller holds only the layers not yet written. Any other
+ * generator gets the collected layers on close.
+ * */
+
+public class LayerWriter {
+
+	private final Generator generator;
+	private final PrintWriter writer;
+	private final TimeLine timeLine;
+	private final StreamingGenerator streamer;
+	private final List<Layer> layers;
+
+	public LayerWriter(Generator generator, PrintWriter writer,
+			TimeLine timeLine) {
+
+		this.generator = generator;
+		this.writer = writer;
+		this.timeLine = timeLine;
+
+		if (generator instanceof StreamingGenerator) {
+
+			streamer = (StreamingGenerator) generator;
+			streamer.start(writer, timeLine);
+			layers = null;
+
+		} else {
+
+			streamer = null;
+			layers = new ArrayList<Layer>();
+
+		}
+
+	}// END: LayerWriter()
+
+	public void add(Layer layer) {
+
+		if (streamer != null) {
+			streamer.writeLayer(layer);
+		} else {
+			layers.add(layer);
+		}
+
+	}// END: add
+
+	/*
+	 * Waits for the layer, skipped if the task gave none. Failures of the
+	 * task are rethrown.
+	 */
+	public void add(Future<Layer> future) {
+
+		try {
+
+			Layer layer = future.get();
+			if (layer != null) {
+				add(layer);
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while generating layers!");
+		} catch (ExecutionException e) {
+
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
+
+		}// END: try-catch
+
+	}// END: add
+
+	public void close() throws IOException {
+
+		if (streamer != null) {
+			streamer.finish();
+		} else {
+			generator.generate(writer, timeLine, layers);
+		}
+
+	}// END: close
+
+}// END: class
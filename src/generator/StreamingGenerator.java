@@ -0,0 +1,23 @@
+package generator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import structure.Layer;
+import structure.TimeLine;
+
+/*
+ * Generator that can write its output one layer at a time: start once,
+ * writeLayer for every layer in order, finish once. generate does the same
+ * for a collection of layers.
+ * */
+
+public interface StreamingGenerator extends Generator {
+
+	public void start(PrintWriter writer, final TimeLine timeLine);
+
+	public void writeLayer(final Layer layer);
+
+	public void finish() throws IOException;
+
+}// END: interface
@@ -0,0 +1,404 @@
+package generator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import structure.Coordinates;
+import structure.Item;
+import structure.Layer;
+import structure.Line;
+import structure.Place;
+import structure.Polygon;
+import structure.Style;
+import structure.TimeLine;
+import utils.GeoIntermediate;
+import utils.GeoIntermediate.NavigationEnum;
+import utils.Utils;
+
+/*
+ * Writes KML straight to the writer, element by element, without building
+ * the kmlframework object tree. Layers can be written one at a time as they
+ * are produced (start, writeLayer, finish, as LayerWriter does for the
+ * templates), so only the layers not yet written are held in memory. Every
+ * distinct style is written once (see StyleTable), leading the Folder of the
+ * first layer using it: KML wants styles ahead of the features of their
+ * container, and style urls resolve across the whole document.
+ * */
+
+public class StreamingKMLGenerator implements StreamingGenerator {
+
+	// 01-01-01 in millis before 1970-01-01
+	private static final double YearZeroInMillis = -62135773200000.0;
+
+	private SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd",
+			Locale.US);
+	private StyleTable styleTable = new StyleTable();
+	private GeoIntermediate geoIntermediate;
+	private NavigationEnum navigation = NavigationEnum.RHUMB;
+	private PrintWriter writer;
+	private TimeLine timeLine;
+
+	public StreamingKMLGenerator() {
+	}
+
+	public void setNavigation(NavigationEnum navigation) {
+		this.navigation = navigation;
+	}
+
+	public void generate(PrintWriter writer, final TimeLine timeLine,
+			final Collection<Layer> layers) throws IOException {
+
+		start(writer, timeLine);
+
+		for (Layer layer : layers) {
+			writeLayer(layer);
+		}
+
+		finish();
+	}// END: generate
+
+	public void start(PrintWriter writer, final TimeLine timeLine) {
+
+		this.writer = writer;
+		this.timeLine = timeLine;
+
+		writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		writer.println("<kml xmlns=\"http://www.opengis.net/kml/2.2\">");
+		writer.println("\t<Document>");
+
+	}// END: start
+
+	public void writeLayer(final Layer layer) {
+
+		writer.println("\t\t<Folder>");
+		writeElement(3, "name", layer.getName());
+		writeElement(3, "description", layer.getDescription());
+
+		for (Item item : layer.getItems()) {
+			if (item instanceof Polygon) {
+				writePolyStyle(((Polygon) item).getPolyStyle());
+			} else if (item instanceof Line) {
+				writeLineStyle(((Line) item).getStartStyle());
+			}
+		}// END: styles loop
+
+		for (Item item : layer.getItems()) {
+			if (item instanceof Line) {
+				writeLine((Line) item);
+			} else if (item instanceof Polygon) {
+				writePolygon((Polygon) item);
+			} else if (item instanceof Place) {
+				writePlacemark((Place) item);
+			} else {
+				throw new IllegalArgumentException("unknown item type");
+			}
+		}// END: items loop
+
+		writer.println("\t\t</Folder>");
+
+	}// END: writeLayer
+
+	public void finish() throws IOException {
+
+		writer.println("\t</Document>");
+		writer.println("</kml>");
+		writer.close();
+
+		if (writer.checkError()) {
+			throw new IOException("Error writing kml");
+		}
+
+	}// END: finish
+
+	private void writePolyStyle(Style style) {
+
+		if (style == null || styleTable.lookup(style, true) != null) {
+			return;
+		}
+
+		String styleId = styleTable.add(style, true);
+		writer.println("\t\t\t<Style id=\"" + escape(styleId) + "\">");
+		writer.println("\t\t\t\t<PolyStyle>");
+		writeElement(5, "color", Utils.getKMLColor(style.getStrokeColor()));
+		writeElement(5, "outline", "0");
+		writer.println("\t\t\t\t</PolyStyle>");
+		writer.println("\t\t\t</Style>");
+
+	}// END: writePolyStyle
+
+	private void writeLineStyle(Style style) {
+
+		if (style == null || styleTable.lookup(style, false) != null) {
+			return;
+		}
+
+		String styleId = styleTable.add(style, false);
+		writer.println("\t\t\t<Style id=\"" + escape(styleId) + "\">");
+		writer.println("\t\t\t\t<LineStyle>");
+		writeElement(5, "color", Utils.getKMLColor(style.getStrokeColor()));
+		writeElement(5, "width", Double.toString(style.getStrokeWidth()));
+		writer.println("\t\t\t\t</LineStyle>");
+		writer.println("\t\t\t</Style>");
+
+	}// END: writeLineStyle
+
+	private void writePolygon(final Polygon polygon) {
+
+		writer.println("\t\t\t<Placemark>");
+		writeElement(4, "name", polygon.getName());
+		writeTimeSpan(4, polygon.getStartTime(), polygon.getDuration());
+		writeElement(4, "styleUrl",
+				styleTable.lookup(polygon.getPolyStyle(), true));
+
+		writer.println("\t\t\t\t<Polygon>");
+		writeElement(5, "tessellate", "1");
+		writer.println("\t\t\t\t\t<outerBoundaryIs>");
+		writer.println("\t\t\t\t\t\t<LinearRing>");
+		writer.print("\t\t\t\t\t\t\t<coordinates>");
+		List<Coordinates> vertices = polygon.getPolyCoordinates();
+		for (int i = 0; i < vertices.size(); i++) {
+			if (i > 0) {
+				writer.print(' ');
+			}
+			Coordinates coordinates = vertices.get(i);
+			writeCoordinates(coordinates.getLongitude(), coordinates
+					.getLatitude(), coordinates.getAltitude());
+		}
+
+		// rings must end where they start
+		if (vertices.size() > 1) {
+			Coordinates first = vertices.get(0);
+			Coordinates last = vertices.get(vertices.size() - 1);
+			if (first.getLongitude() != last.getLongitude()
+					|| first.getLatitude() != last.getLatitude()
+					|| first.getAltitude() != last.getAltitude()) {
+				writer.print(' ');
+				writeCoordinates(first.getLongitude(), first.getLatitude(),
+						first.getAltitude());
+			}
+		}
+		writer.println("</coordinates>");
+		writer.println("\t\t\t\t\t\t</LinearRing>");
+		writer.println("\t\t\t\t\t</outerBoundaryIs>");
+		writer.println("\t\t\t\t</Polygon>");
+		writer.println("\t\t\t</Placemark>");
+
+	}// END: writePolygon
+
+	private void writeLine(final Line line) {
+
+		boolean sameStyle = line.getEndStyle() == null
+				|| line.getStartStyle().equals(line.getEndStyle());
+
+		double startTime = line.getStartTime();
+		double endTime = line.getEndTime();
+		double duration = line.getDuration();
+		double maxAltitude = line.getMaxAltitude();
+		double timeRange = endTime - startTime;
+
+		if (sameStyle && (timeLine.isInstantaneous() || timeRange == 0.0)) {
+
+			writeLineSegment(3, line.getName(), line.getStartLocation()
+					.getLongitude(), line.getStartLocation().getLatitude(),
+					line.getStartLocation().getAltitude(), line
+							.getEndLocation().getLongitude(), line
+							.getEndLocation().getLatitude(), line
+							.getEndLocation().getAltitude(), startTime,
+					duration, line.getStartStyle());
+			return;
+
+		}// END: single segment check
+
+		writer.println("\t\t\t<Folder>");
+		writeElement(4, "name", line.getName());
+
+		if (sameStyle) {
+
+			int sliceCount = timeLine.getSliceCount();
+
+			// one buffer for all lines of this slice count
+			if (geoIntermediate == null
+					|| geoIntermediate.getSliceCount() != sliceCount
+					|| geoIntermediate.getNavigation() != navigation) {
+				geoIntermediate = new GeoIntermediate(sliceCount,
+						navigation);
+			}
+			double path[] = geoIntermediate.interpolate(line
+					.getStartLocation().getLongitude(), line.getStartLocation()
+					.getLatitude(), line.getEndLocation().getLongitude(), line
+					.getEndLocation().getLatitude());
+
+			for (int i = 0; i < sliceCount; i++) {
+
+				double startAltitude = geoIntermediate.getAltitude(i,
+						maxAltitude);
+				double endAltitude = geoIntermediate.getAltitude(i + 1,
+						maxAltitude);
+
+				double segmentStartTime = endTime - (i + 1)
+						* ((endTime - startTime) / sliceCount);
+
+				writeLineSegment(4, null, path[2 * i], path[2 * i + 1],
+						startAltitude, path[2 * i + 2], path[2 * i + 3],
+						endAltitude, segmentStartTime, duration, line
+								.getStartStyle());
+
+			}// END: slices loop
+		}// END: style check
+
+		writer.println("\t\t\t</Folder>");
+
+	}// END: writeLine
+
+	private void writeLineSegment(int depth, String name,
+			double startLongitude, double startLatitude, double startAltitude,
+			double endLongitude, double endLatitude, double endAltitude,
+			double startTime, double duration, Style style) {
+
+		indent(depth);
+		writer.println("<Placemark>");
+		writeElement(depth + 1, "name", name);
+		if (!Double.isNaN(duration)) {
+			writeTimeSpan(depth + 1, startTime, duration);
+		}
+		writeElement(depth + 1, "styleUrl", styleTable.lookup(style, false));
+		indent(depth + 1);
+		writer.println("<LineString>");
+		writeElement(depth + 2, "tessellate", "1");
+		writeElement(depth + 2, "altitudeMode", "relativeToGround");
+		indent(depth + 2);
+		writer.print("<coordinates>");
+		writeCoordinates(startLongitude, startLatitude, startAltitude);
+		writer.print(' ');
+		writeCoordinates(endLongitude, endLatitude, endAltitude);
+		writer.println("</coordinates>");
+		indent(depth + 1);
+		writer.println("</LineString>");
+		indent(depth);
+		writer.println("</Placemark>");
+
+	}// END: writeLineSegment
+
+	private void writePlacemark(final Place place) {
+
+		Coordinates coordinates = place.getCoordinates();
+
+		writer.println("\t\t\t<Placemark>");
+		writeElement(4, "name", place.getName());
+		writer.println("\t\t\t\t<Point>");
+		writeElement(5, "altitudeMode", "relativeToGround");
+		writer.print("\t\t\t\t\t<coordinates>");
+		writeCoordinates(coordinates.getLongitude(), coordinates.getLatitude(),
+				coordinates.getAltitude());
+		writer.println("</coordinates>");
+		writer.println("\t\t\t\t</Point>");
+		writer.println("\t\t\t</Placemark>");
+
+	}// END: writePlacemark
+
+	private void writeTimeSpan(int depth, double startTime, double duration) {
+
+		// Parse minus if date is BC
+		String begin = startTime < YearZeroInMillis ? "-"
+				+ formatter.format(startTime) : formatter.format(startTime);
+		String end = duration > 0.0 ? (startTime + duration < YearZeroInMillis ? "-"
+				+ formatter.format(startTime + duration)
+				: formatter.format(startTime + duration))
+				: "";
+
+		indent(depth);
+		writer.println("<TimeSpan>");
+		writeElement(depth + 1, "begin", begin);
+		indent(depth + 1);
+		writer.println("<end>" + end + "</end>");
+		indent(depth);
+		writer.println("</TimeSpan>");
+
+	}// END: writeTimeSpan
+
+	private void writeCoordinates(double longitude, double latitude,
+			double altitude) {
+
+		writer.print(longitude);
+		writer.print(',');
+		writer.print(latitude);
+		writer.print(',');
+		writer.print(altitude);
+
+	}// END: writeCoordinates
+
+	/*
+	 * Skips null values
+	 * */
+	private void writeElement(int depth, String name, String value) {
+
+		if (value == null) {
+			return;
+		}
+
+		indent(depth);
+		writer.print('<');
+		writer.print(name);
+		writer.print('>');
+		writer.print(escape(value));
+		writer.print("</");
+		writer.print(name);
+		writer.println('>');
+
+	}// END: writeElement
+
+	private void indent(int depth) {
+		for (int i = 0; i < depth; i++) {
+			writer.print('\t');
+		}
+	}// END: indent
+
+	private static String escape(String value) {
+
+		StringBuilder escaped = null;
+		for (int i = 0; i < value.length(); i++) {
+
+			char c = value.charAt(i);
+			String replacement = null;
+			switch (c) {
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			}
+
+			if (replacement != null && escaped == null) {
+				escaped = new StringBuilder(value.length() + 16);
+				escaped.append(value, 0, i);
+			}
+
+			if (escaped != null) {
+				if (replacement != null) {
+					escaped.append(replacement);
+				} else {
+					escaped.append(c);
+				}
+			}
+		}// END: characters loop
+
+		return (escaped == null) ? value : escaped.toString();
+	}// END: escape
+
+	@Override
+	public String toString() {
+		return "KML";
+	}
+
+}// END: class
@@ -0,0 +1,57 @@
+package generator;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import structure.Style;
+
+/*
+ * Shared styles keyed by what they look like: colour, width and whether they
+ * fill polygons or stroke lines. Every distinct look is written once, under
+ * the id of the first style having it, and referenced by that id.
+ * */
+
+class StyleTable {
+
+	private final Map<String, String> ids = new HashMap<String, String>();
+	private final Set<String> usedIds = new HashSet<String>();
+
+	/*
+	 * Id of the shared style looking like this one, null if there is none yet
+	 * */
+	String lookup(Style style, boolean polygon) {
+		return ids.get(getKey(style, polygon));
+	}// END: lookup
+
+	/*
+	 * Registers the look of the style, returns the id to write it under
+	 * */
+	String add(Style style, boolean polygon) {
+
+		String id = style.getId();
+		if (id == null || usedIds.contains(id)) {
+			// same id given to a different look
+			id = (id == null ? "style" : id) + "_" + ids.size();
+		}
+
+		ids.put(getKey(style, polygon), id);
+		usedIds.add(id);
+
+		return id;
+	}// END: add
+
+	private String getKey(Style style, boolean polygon) {
+
+		StringBuilder key = new StringBuilder(polygon ? "poly:" : "line:");
+		key.append(style.getStrokeColor() == null ? "-" : Integer
+				.toHexString(style.getStrokeColor().getRGB()));
+		if (!polygon) {
+			key.append(':').append(style.getStrokeWidth());
+		}
+
+		return key.toString();
+	}// END: getKey
+
+}// END: class
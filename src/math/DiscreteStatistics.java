@@ -406,6 +406,62 @@ public class DiscreteStatistics {
 		return cdf(z, x, indices);
 	}
 
+	/**
+	 * find the k-th smallest entry of x[from..to) in expected linear time,
+	 * partially reorders x: afterwards no entry of x[from..k) is larger and no
+	 * entry of x(k..to) is smaller than x[k]
+	 * 
+	 * @param x
+	 *            list of numbers
+	 * @param k
+	 *            rank of the entry, from <= k < to
+	 * @param from
+	 *            first index of the range
+	 * @param to
+	 *            index after the range
+	 * @return k-th smallest entry
+	 */
+	public static double select(double[] x, int k, int from, int to) {
+
+		if (k < from || k >= to)
+			throw new IllegalArgumentException("Rank out of range");
+
+		int left = from;
+		int right = to - 1;
+		while (left < right) {
+
+			// median of three pivot
+			int middle = (left + right) >>> 1;
+			double pivot = Math.max(Math.min(x[left], x[middle]), Math.min(
+					Math.max(x[left], x[middle]), x[right]));
+
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (x[i] < pivot)
+					i++;
+				while (x[j] > pivot)
+					j--;
+				if (i <= j) {
+					double temp = x[i];
+					x[i] = x[j];
+					x[j] = temp;
+					i++;
+					j--;
+				}
+			}
+
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				break;
+		}
+
+		return x[k];
+	}
+
 	public static double max(double[] x) {
 		double max = x[0];
 		for (int i = 1; i < x.length; i++) {
@@ -0,0 +1,91 @@
+package math;
+
+/**
+ * In-place iterative radix-2 complex fast Fourier transform
+ */
+public class FastFourierTransform {
+
+	/*
+	 * @param real real parts, length must be a power of two
+	 *
+	 * @param imaginary imaginary parts, same length
+	 *
+	 * @param inverse computes the unscaled inverse transform when true
+	 */
+	public static void transform(double[] real, double[] imaginary,
+			boolean inverse) {
+
+		int length = real.length;
+		if (length != imaginary.length)
+			throw new RuntimeException("data vectors must be the same length");
+		if (Integer.bitCount(length) != 1)
+			throw new RuntimeException("length must be a power of two");
+
+		// bit reversal permutation
+		for (int i = 1, j = 0; i < length; i++) {
+
+			int bit = length >> 1;
+			for (; (j & bit) != 0; bit >>= 1) {
+				j ^= bit;
+			}
+			j ^= bit;
+
+			if (i < j) {
+				double temp = real[i];
+				real[i] = real[j];
+				real[j] = temp;
+				temp = imaginary[i];
+				imaginary[i] = imaginary[j];
+				imaginary[j] = temp;
+			}
+		}// END: permutation loop
+
+		// butterflies
+		for (int size = 2; size <= length; size <<= 1) {
+
+			double angle = (inverse ? 2 : -2) * Math.PI / size;
+			double stepReal = Math.cos(angle);
+			double stepImaginary = Math.sin(angle);
+			int half = size >> 1;
+
+			for (int start = 0; start < length; start += size) {
+
+				double wReal = 1;
+				double wImaginary = 0;
+
+				for (int k = 0; k < half; k++) {
+
+					int even = start + k;
+					int odd = even + half;
+
+					double oddReal = real[odd] * wReal - imaginary[odd]
+							* wImaginary;
+					double oddImaginary = real[odd] * wImaginary
+							+ imaginary[odd] * wReal;
+
+					real[odd] = real[even] - oddReal;
+					imaginary[odd] = imaginary[even] - oddImaginary;
+					real[even] += oddReal;
+					imaginary[even] += oddImaginary;
+
+					double temp = wReal * stepReal - wImaginary * stepImaginary;
+					wImaginary = wReal * stepImaginary + wImaginary * stepReal;
+					wReal = temp;
+				}
+			}
+		}// END: sizes loop
+
+	}// END: transform
+
+	/*
+	 * Smallest power of two not less than n
+	 */
+	public static int nextPowerOfTwo(int n) {
+		int power = 1;
+		while (power < n) {
+			power <<= 1;
+		}
+		return power;
+	}// END: nextPowerOfTwo
+
+}// END: class
@@ -160,6 +160,33 @@ public class MathUtils {
 		}
 	}
 
+	/**
+	 * Independent generator for one stream of draws (e.g. one tree), seeded
+	 * by mixing the master seed with the stream index, so draws do not depend
+	 * on thread scheduling. Not synchronized, confine a stream to one thread.
+	 */
+	public static MersenneTwisterFast getRandomStream(long masterSeed,
+			long streamIndex) {
+
+		long z = mix64(masterSeed, streamIndex);
+
+		// all 64 bits, a long seed would be cut to its low int
+		return new MersenneTwisterFast(new int[] { (int) z, (int) (z >>> 32) });
+	}
+
+	/**
+	 * SplitMix64 finalizer of seed and index, well spread 64 bits for every
+	 * (seed, index) pair
+	 */
+	public static long mix64(long seed, long index) {
+
+		long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+
+		return z ^ (z >>> 31);
+	}
+
 	/**
 	 * Access a default instance of this class, access is synchronized
 	 */
@@ -71,10 +71,11 @@ import java.io.Serializable;
  * <p/>
  * - added gamma RV method (Marc Suchard)
  * <p/>
- * This is now package private - it should be accessed using the instance in
- * Random
+ * Shared draws should go through the synchronized instance in MathUtils;
+ * instances of its own (see MathUtils.getRandomStream) must stay on one
+ * thread.
  */
-class MersenneTwisterFast implements Serializable {
+public class MersenneTwisterFast implements Serializable {
 	/**
 	 *
 	 */
@@ -135,7 +136,7 @@ class MersenneTwisterFast implements Serializable {
 	 * @param seed
 	 *            generator starting number, often the time of day.
 	 */
-	private MersenneTwisterFast(long seed) {
+	public MersenneTwisterFast(long seed) {
 		if (seed == 0) {
 			setSeed(GOOD_SEED);
 		} else {
@@ -143,6 +144,16 @@ class MersenneTwisterFast implements Serializable {
 		}
 	}
 
+	/**
+	 * Constructor using all the bits of a seed array.
+	 * 
+	 * @param key
+	 *            non empty seed array
+	 */
+	public MersenneTwisterFast(int[] key) {
+		setSeed(key);
+	}
+
 	/**
 	 * Initalize the pseudo random number generator. The Mersenne Twister only
 	 * uses an integer for its seed; It's best that you don't pass in a long
@@ -179,6 +190,57 @@ class MersenneTwisterFast implements Serializable {
 		mag01[1] = MATRIX_A;
 	}
 
+	/**
+	 * Initalize the pseudo random number generator from every int of the key
+	 * (init_by_array of the reference MT19937 code). getSeed() then returns
+	 * the first two ints of the key.
+	 * 
+	 * @param key
+	 *            non empty seed array
+	 */
+	public final void setSeed(int[] key) {
+		if (key.length == 0) {
+			throw new IllegalArgumentException("Non empty random seed required.");
+		}
+		initializationSeed = (key[0] & 0xffffffffL)
+				| (key.length > 1 ? (long) key[1] << 32 : 0);
+		haveNextNextGaussian = false;
+
+		mt = new int[N];
+		mt[0] = 19650218;
+		for (mti = 1; mti < N; mti++)
+			mt[mti] = (1812433253 * (mt[mti - 1] ^ (mt[mti - 1] >>> 30)) + mti);
+
+		int i = 1;
+		int j = 0;
+		for (int k = Math.max(N, key.length); k > 0; k--) {
+			mt[i] = (mt[i] ^ ((mt[i - 1] ^ (mt[i - 1] >>> 30)) * 1664525))
+					+ key[j] + j;
+			i++;
+			j++;
+			if (i >= N) {
+				mt[0] = mt[N - 1];
+				i = 1;
+			}
+			if (j >= key.length)
+				j = 0;
+		}
+		for (int k = N - 1; k > 0; k--) {
+			mt[i] = (mt[i] ^ ((mt[i - 1] ^ (mt[i - 1] >>> 30)) * 1566083941))
+					- i;
+			i++;
+			if (i >= N) {
+				mt[0] = mt[N - 1];
+				i = 1;
+			}
+		}
+		mt[0] = 0x80000000; // MSB is 1; assuring non-zero initial array
+
+		mag01 = new int[2];
+		mag01[0] = 0x0;
+		mag01[1] = MATRIX_A;
+	}
+
 	public final long getSeed() {
 		return initializationSeed;
 	}
@@ -153,6 +153,25 @@ public class MultivariateNormalDistribution implements MultivariateDistribution
 		return cholesky;
 	}
 
+	// Lower triangular factor of the variance, closed form for 2x2
+	public static double[][] getVarianceCholesky(double[][] precision) {
+
+		if (precision.length == 2) {
+
+			double det = precision[0][0] * precision[1][1] - precision[0][1]
+					* precision[1][0];
+
+			double l00 = Math.sqrt(precision[1][1] / det);
+			double l10 = -precision[1][0] / det / l00;
+			double l11 = Math.sqrt(Math.max(precision[0][0] / det - l10 * l10,
+					0.0));
+
+			return new double[][] { { l00, 0.0 }, { l10, l11 } };
+		}
+
+		return getCholeskyDecomposition(getInverse(precision));
+	}
+
 	public static double[] nextMultivariateNormalPrecision(double[] mean,
 			double[][] precision) {
 		return nextMultivariateNormalVariance(mean, getInverse(precision));
@@ -187,12 +206,35 @@ public class MultivariateNormalDistribution implements MultivariateDistribution
 
 		final int dim = mean.length;
 
-		System.arraycopy(mean, 0, result, 0, dim);
-
 		double[] epsilon = new double[dim];
 		for (int i = 0; i < dim; i++)
 			epsilon[i] = MathUtils.nextGaussian() * sqrtScale;
 
+		addCholeskyProduct(mean, cholesky, epsilon, result);
+	}
+
+	// Draws from the given (unsynchronized) stream
+	public static void nextMultivariateNormalCholesky(double[] mean,
+			double[][] cholesky, double sqrtScale, double[] result,
+			MersenneTwisterFast random) {
+
+		final int dim = mean.length;
+
+		double[] epsilon = new double[dim];
+		for (int i = 0; i < dim; i++)
+			epsilon[i] = random.nextGaussian() * sqrtScale;
+
+		addCholeskyProduct(mean, cholesky, epsilon, result);
+	}
+
+	// result = mean + cholesky * epsilon
+	private static void addCholeskyProduct(double[] mean,
+			double[][] cholesky, double[] epsilon, double[] result) {
+
+		final int dim = mean.length;
+
+		System.arraycopy(mean, 0, result, 0, dim);
+
 		for (int i = 0; i < dim; i++) {
 			for (int j = 0; j <= i; j++) {
 				result[i] += cholesky[i][j] * epsilon[j];
@@ -0,0 +1,76 @@
+package templates;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.trees.RootedTree;
+import utils.LocationRegistry;
+import utils.StateResolver;
+import utils.TransitionAccumulator;
+
+public class AnalyzeDiscreteTree implements Runnable {
+
+	private RootedTree currentTree;
+	private String stateAttName;
+	private LocationRegistry locations;
+	private TransitionAccumulator accumulator;
+	private long seed;
+	private int treeIndex;
+
+	public AnalyzeDiscreteTree(RootedTree currentTree, String stateAttName,
+			LocationRegistry locations, TransitionAccumulator accumulator,
+			long seed, int treeIndex) {
+
+		this.currentTree = currentTree;
+		this.stateAttName = stateAttName;
+		this.locations = locations;
+		this.accumulator = accumulator;
+		this.seed = seed;
+		this.treeIndex = treeIndex;
+
+	}
+
+	public void run() {
+
+		accumulator.addTree();
+
+		// locations resolved once per node
+		StateResolver stateResolver = new StateResolver(currentTree,
+				stateAttName, seed, false);
+		Map<Node, Integer> nodeLocations = new HashMap<Node, Integer>();
+		for (Node node : currentTree.getNodes()) {
+			String state = stateResolver.getState(node);
+			nodeLocations.put(node, state == null ? LocationRegistry.NO_LOCATION
+					: locations.getId(state));
+		}
+
+		for (Node node : currentTree.getNodes()) {
+			if (!currentTree.isRoot(node)) {
+
+				Node parentNode = currentTree.getParent(node);
+
+				int location = nodeLocations.get(node);
+				int parentLocation = nodeLocations.get(parentNode);
+
+				if (location == LocationRegistry.NO_LOCATION
+						|| parentLocation == LocationRegistry.NO_LOCATION) {
+					continue;
+				}
+
+				if (location != parentLocation) {
+
+					accumulator.addJump(treeIndex, parentLocation, location);
+
+				} else {
+
+					accumulator.addLineage(location, currentTree
+							.getHeight(node), currentTree.getHeight(parentNode));
+
+				}// END: jump check
+			}// END: root check
+		}// END: nodes loop
+
+	}// END: run
+
+}// END: class
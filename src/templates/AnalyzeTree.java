@@ -1,47 +1,45 @@
 package templates;
 
-import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
-import java.util.List;
-import java.util.concurrent.ConcurrentMap;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.trees.RootedTree;
+import math.MathUtils;
+import math.MersenneTwisterFast;
 import math.MultivariateNormalDistribution;
-import structure.Coordinates;
-import utils.ThreadLocalSpreadDate;
+import utils.SliceAccumulator;
 import utils.Utils;
 
 public class AnalyzeTree implements Runnable {
 
-	// how many days one year holds
-	private static final int DaysInYear = 365;
-
 	private RootedTree currentTree;
 	private String precisionString;
 	private String coordinatesName;
 	private String rateString;
-	private double timescaler;
+	// sorted in ascending order
 	private double[] sliceHeights;
-	private ThreadLocalSpreadDate mrsd;
-	private ConcurrentMap<Double, List<Coordinates>> slicesMap;
+	private SliceAccumulator slicesAccumulator;
 	private boolean useTrueNoise;
+	private long seed;
+	private int treeIndex;
+
+	// per tree stream, draws do not depend on thread scheduling
+	private MersenneTwisterFast random;
 
 	public AnalyzeTree(RootedTree currentTree, String precisionString,
 			String coordinatesName, String rateString, double[] sliceHeights,
-			double timescaler, ThreadLocalSpreadDate mrsd,
-			ConcurrentMap<Double, List<Coordinates>> slicesMap,
-			boolean useTrueNoise) {
+			SliceAccumulator slicesAccumulator, boolean useTrueNoise,
+			long seed, int treeIndex) {
 
 		this.currentTree = currentTree;
 		this.precisionString = precisionString;
 		this.coordinatesName = coordinatesName;
 		this.rateString = rateString;
 		this.sliceHeights = sliceHeights;
-		this.timescaler = timescaler;
-		this.mrsd = mrsd;
-		this.slicesMap = slicesMap;
+		this.slicesAccumulator = slicesAccumulator;
 		this.useTrueNoise = useTrueNoise;
+		this.seed = seed;
+		this.treeIndex = treeIndex;
 
 	}
 
@@ -55,6 +53,17 @@ public class AnalyzeTree implements Runnable {
 			double[] precisionArray = Utils.getTreeDoubleArrayAttribute(
 					currentTree, precisionString);
 
+			// variance factor, rescaled per slice by the branch weights
+			double[][] cholesky = null;
+			if (useTrueNoise) {
+				random = MathUtils.getRandomStream(seed, treeIndex);
+				cholesky = MultivariateNormalDistribution
+						.getVarianceCholesky(getPrecision(precisionArray,
+								currentTreeNormalization));
+			}
+
+			double[] imputedLocation = null;
+
 			for (Node node : currentTree.getNodes()) {
 				if (!currentTree.isRoot(node)) {
 
@@ -75,48 +84,22 @@ public class AnalyzeTree implements Runnable {
 					double rate = Utils
 							.getDoubleNodeAttribute(node, rateString);
 
-					for (int i = 0; i < sliceHeights.length; i++) {
-
-						double sliceHeight = sliceHeights[i];
-
-						if (nodeHeight < sliceHeight
-								&& sliceHeight <= parentHeight) {
-
-							int days = (int) (sliceHeight * DaysInYear * timescaler);
-							double sliceTime = mrsd.minus(days);
-
-							// grow map entry if key exists
-							if (slicesMap.containsKey(sliceTime)) {
-
-								double[] imputedLocation = imputeValue(
-										location, parentLocation, sliceHeight,
-										nodeHeight, parentHeight, rate,
-										useTrueNoise, currentTreeNormalization,
-										precisionArray);
+					if (imputedLocation == null) {
+						imputedLocation = new double[location.length];
+					}
 
-								slicesMap.get(sliceTime).add(
-										new Coordinates(imputedLocation[1],
-												imputedLocation[0], 0.0));
+					// slices with nodeHeight < sliceHeight <= parentHeight
+					for (int i = getFirstSliceAbove(nodeHeight); i < sliceHeights.length
+							&& sliceHeights[i] <= parentHeight; i++) {
 
-								// start new entry if no such key in the map
-							} else {
+						imputeValue(location, parentLocation, sliceHeights[i],
+								nodeHeight, parentHeight, rate, useTrueNoise,
+								cholesky, imputedLocation);
 
-								List<Coordinates> coords = new ArrayList<Coordinates>();
+						slicesAccumulator.add(i, imputedLocation[0],
+								imputedLocation[1]);
 
-								double[] imputedLocation = imputeValue(
-										location, parentLocation, sliceHeight,
-										nodeHeight, parentHeight, rate,
-										useTrueNoise, currentTreeNormalization,
-										precisionArray);
-
-								coords.add(new Coordinates(imputedLocation[1],
-										imputedLocation[0], 0.0));
-
-								slicesMap.put(sliceTime, coords);
-
-							}// END: key check
-						}// END: sliceTime check
-					}// END: numberOfIntervals loop
+					}// END: crossed slices loop
 				}
 			}// END: node loop
 
@@ -126,10 +109,27 @@ public class AnalyzeTree implements Runnable {
 
 	}// END: run
 
-	private double[] imputeValue(double[] location, double[] parentLocation,
-			double sliceHeight, double nodeHeight, double parentHeight,
-			double rate, boolean trueNoise, double treeNormalization,
-			double[] precisionArray) {
+	// index of the lowest slice height strictly above height
+	private int getFirstSliceAbove(double height) {
+
+		int low = 0;
+		int high = sliceHeights.length;
+		while (low < high) {
+
+			int middle = (low + high) >>> 1;
+			if (sliceHeights[middle] <= height) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+
+		}// END: search loop
+
+		return low;
+	}// END: getFirstSliceAbove
+
+	private double[][] getPrecision(double[] precisionArray,
+			double treeNormalization) {
 
 		int dim = (int) Math.sqrt(1 + 8 * precisionArray.length) / 2;
 		double[][] precision = new double[dim][dim];
@@ -141,54 +141,64 @@ public class AnalyzeTree implements Runnable {
 			}
 		}
 
-		dim = location.length;
-		double[] nodeValue = new double[2];
-		double[] parentValue = new double[2];
-
-		for (int i = 0; i < dim; i++) {
+		return precision;
+	}// END: getPrecision
 
-			nodeValue[i] = location[i];
-			parentValue[i] = parentLocation[i];
+	/*
+	 * Writes the imputed location into result. The precision scaled by the
+	 * branch weights is never built, the per-tree variance factor is
+	 * rescaled by 1 / sqrt(weight) instead.
+	 * */
+	private void imputeValue(double[] location, double[] parentLocation,
+			double sliceHeight, double nodeHeight, double parentHeight,
+			double rate, boolean trueNoise, double[][] cholesky,
+			double[] result) {
 
-		}
+		final int dim = location.length;
 
 		final double scaledTimeChild = (sliceHeight - nodeHeight) * rate;
 		final double scaledTimeParent = (parentHeight - sliceHeight) * rate;
 		final double scaledWeightTotal = (1.0 / scaledTimeChild)
 				+ (1.0 / scaledTimeParent);
 
-		if (scaledTimeChild == 0)
-			return location;
+		if (scaledTimeChild == 0) {
+			System.arraycopy(location, 0, result, 0, dim);
+			return;
+		}
 
-		if (scaledTimeParent == 0)
-			return parentLocation;
+		if (scaledTimeParent == 0) {
+			System.arraycopy(parentLocation, 0, result, 0, dim);
+			return;
+		}
 
 		// Find mean value, weighted average
-		double[] mean = new double[dim];
-		double[][] scaledPrecision = new double[dim][dim];
-
 		for (int i = 0; i < dim; i++) {
-			mean[i] = (nodeValue[i] / scaledTimeChild + parentValue[i]
+			result[i] = (location[i] / scaledTimeChild + parentLocation[i]
 					/ scaledTimeParent)
 					/ scaledWeightTotal;
-
-			if (trueNoise) {
-				for (int j = i; j < dim; j++)
-					scaledPrecision[j][i] = scaledPrecision[i][j] = precision[i][j]
-							* scaledWeightTotal;
-			}
 		}
 
 		if (trueNoise) {
-			mean = MultivariateNormalDistribution
-					.nextMultivariateNormalPrecision(mean, scaledPrecision);
-		}
 
-		double[] result = new double[dim];
-		for (int i = 0; i < dim; i++)
-			result[i] = mean[i];
+			double sqrtScale = 1.0 / Math.sqrt(scaledWeightTotal);
+
+			if (dim == 2) {
+
+				double epsilon0 = random.nextGaussian() * sqrtScale;
+				double epsilon1 = random.nextGaussian() * sqrtScale;
+
+				result[0] += cholesky[0][0] * epsilon0;
+				result[1] += cholesky[1][0] * epsilon0 + cholesky[1][1]
+						* epsilon1;
+
+			} else {
+
+				MultivariateNormalDistribution.nextMultivariateNormalCholesky(
+						result, cholesky, sqrtScale, result, random);
+
+			}
+		}// END: trueNoise check
 
-		return result;
 	}// END: ImputeValue
 
 }// END: AnalyzeTree
@@ -6,7 +6,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import utils.Holder;
-import utils.ReadLog;
+import utils.LogColumnMeans;
 import utils.Utils;
 import utils.Utils.PoissonPriorEnum;
 
@@ -23,7 +23,7 @@ public class BayesFactorTest {
 	private InteractiveTableModel table;
 	private PoissonPriorEnum meanPoissonPriorSwitcher;
 	private PoissonPriorEnum poissonPriorOffsetSwitcher;
-	private ReadLog indicators;
+	private LogColumnMeans indicators;
 	private ArrayList<String> combin;
 	private ArrayList<Double> bayesFactors;
 
@@ -31,7 +31,7 @@ public class BayesFactorTest {
 			PoissonPriorEnum meanPoissonPriorSwitcher,
 			Holder meanPoissonPriorHolder,
 			PoissonPriorEnum poissonPriorOffsetSwitcher,
-			Holder poissonPriorOffsetHolder, ReadLog indicators,
+			Holder poissonPriorOffsetHolder, LogColumnMeans indicators,
 			ArrayList<String> combin, ArrayList<Double> bayesFactors) {
 
 		this.table = table;
@@ -66,9 +66,9 @@ public class BayesFactorTest {
 		}
 
 		boolean symmetrical = false;
-		if (indicators.ncol == n * (n - 1)) {
+		if (indicators.getColumnCount() == n * (n - 1)) {
 			symmetrical = false;
-		} else if (indicators.ncol == (n * (n - 1)) / 2) {
+		} else if (indicators.getColumnCount() == (n * (n - 1)) / 2) {
 			symmetrical = true;
 		} else {
 			throw new RuntimeException(
@@ -107,7 +107,7 @@ public class BayesFactorTest {
 					/ ((n * (n - 1)) / 1);
 		}
 
-		double[] pk = Utils.colMeans(indicators.indicators);
+		double[] pk = indicators.getMeans();
 
 		double denominator = qk / (1 - qk);
 
@@ -116,7 +116,8 @@ public class BayesFactorTest {
 
 			if (bf == Double.POSITIVE_INFINITY) {
 
-				bf = ((pk[row] - (double) (1.0 / indicators.nrow)) / (1 - (pk[row] - (double) (1.0 / indicators.nrow))))
+				double nrow = indicators.getRowCount();
+				bf = ((pk[row] - (double) (1.0 / nrow)) / (1 - (pk[row] - (double) (1.0 / nrow))))
 						/ denominator;
 
 				System.out.println("Correcting for infinite bf: " + bf);
@@ -1,6 +1,10 @@
 package templates;
 
+import generator.Generator;
 import generator.KMLGenerator;
+import generator.KMZOutputStream;
+import generator.LayerWriter;
+import generator.StreamingKMLGenerator;
 
 import java.awt.Color;
 import java.io.FileNotFoundException;
@@ -8,10 +12,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
@@ -24,6 +28,7 @@ import structure.Line;
 import structure.Polygon;
 import structure.Style;
 import structure.TimeLine;
+import utils.GeoIntermediate.NavigationEnum;
 import utils.ThreadLocalSpreadDate;
 import utils.Utils;
 
@@ -46,7 +51,6 @@ public class ContinuousTreeToKML {
 	private int numberOfIntervals;
 	private double timescaler;
 	private double rootHeight;
-	private List<Layer> layers;
 	private double maxAltMapping;
 
 	private double minPolygonRedMapping;
@@ -75,7 +79,10 @@ public class ContinuousTreeToKML {
 	private String userAttribute;
 	private double treeHeightMax;
 	private TreeImporter importer;
-	private PrintWriter writer;
+	private String kmlPath;
+	private boolean streamKml = false;
+	private boolean kmzOutput = false;
+	private NavigationEnum navigation = NavigationEnum.RHUMB;
 
 	private enum branchesMappingEnum {
 		TIME, DISTANCE, DEFAULT, USER
@@ -126,7 +133,19 @@ public class ContinuousTreeToKML {
 	}
 
 	public void setKmlWriterPath(String kmlpath) throws FileNotFoundException {
-		writer = new PrintWriter(kmlpath);
+		kmlPath = kmlpath;
+	}
+
+	public void setStreamKml(boolean streamKmlBoolean) {
+		streamKml = streamKmlBoolean;
+	}
+
+	public void setKmzOutput(boolean kmzOutputBoolean) {
+		kmzOutput = kmzOutputBoolean;
+	}
+
+	public void setNavigation(NavigationEnum mode) {
+		navigation = mode;
 	}
 
 	public void setTreePath(String path) throws FileNotFoundException {
@@ -231,22 +250,31 @@ public class ContinuousTreeToKML {
 				.getTime(), numberOfIntervals);
 
 		// this is to generate kml output
-		KMLGenerator kmloutput = new KMLGenerator();
-		layers = new ArrayList<Layer>();
+		Generator kmloutput = streamKml ? new StreamingKMLGenerator()
+				: new KMLGenerator();
+		kmloutput.setNavigation(navigation);
+		PrintWriter writer = kmzOutput ? KMZOutputStream.createWriter(kmlPath)
+				: new PrintWriter(kmlPath);
+		LayerWriter layerWriter = new LayerWriter(kmloutput, writer, timeLine);
 
 		// Execute threads
 		final int NTHREDS = Runtime.getRuntime().availableProcessors();
 		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
 
-		executor.submit(new Branches());
-		executor.submit(new Polygons());
+		Future<Layer> branches = executor.submit(new Branches());
+		Future<Layer> polygons = executor.submit(new Polygons());
 		executor.shutdown();
 
-		// Wait until all threads are finished
-		while (!executor.isTerminated()) {
-		}
+		// in a fixed order, each written as soon as it is done
+		try {
+
+			layerWriter.add(branches);
+			layerWriter.add(polygons);
+			layerWriter.close();
 
-		kmloutput.generate(writer, timeLine, layers);
+		} finally {
+			writer.close();
+		}
 
 		// stop timing
 		time += System.currentTimeMillis();
@@ -256,9 +284,9 @@ public class ContinuousTreeToKML {
 	// ////////////////
 	// ---BRANCHES---//
 	// ////////////////
-	private class Branches implements Runnable {
+	private class Branches implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
 
 			try {
 
@@ -411,21 +439,23 @@ public class ContinuousTreeToKML {
 					}// END: root check
 				}// END: node loop
 
-				layers.add(branchesLayer);
+				return branchesLayer;
 
 			} catch (RuntimeException e) {
 				e.printStackTrace();
 			}
 
-		}// END: run
+			return null;
+
+		}// END: call
 	}// END: Branches class
 
 	// ////////////////
 	// ---POLYGONS---//
 	// ////////////////
-	private class Polygons implements Runnable {
+	private class Polygons implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
 
 			try {
 
@@ -557,13 +587,15 @@ public class ContinuousTreeToKML {
 					}// END: root check
 				}// END: nodes loop
 
-				layers.add(polygonsLayer);
+				return polygonsLayer;
 
 			} catch (RuntimeException e) {
 				e.printStackTrace();
 			}
 
-		}// END: run
+			return null;
+
+		}// END: call
 	}// END: polygons class
 
 }// END: ContinuousTreeToKML class
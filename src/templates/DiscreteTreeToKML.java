@@ -1,6 +1,10 @@
 package templates;
 
+import generator.Generator;
 import generator.KMLGenerator;
+import generator.KMZOutputStream;
+import generator.LayerWriter;
+import generator.StreamingKMLGenerator;
 import gui.InteractiveTableModel;
 
 import java.awt.Color;
@@ -9,11 +13,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
@@ -27,7 +30,12 @@ import structure.Place;
 import structure.Polygon;
 import structure.Style;
 import structure.TimeLine;
+import utils.GeoIntermediate.NavigationEnum;
+import utils.LocationRegistry;
+import utils.StateResolver;
 import utils.ThreadLocalSpreadDate;
+import utils.TransitionAccumulator;
+import utils.TreesPipeline;
 import utils.Utils;
 
 public class DiscreteTreeToKML {
@@ -50,7 +58,6 @@ public class DiscreteTreeToKML {
 	private double timescaler;
 	private String userAttribute;
 	private double rootHeight;
-	private List<Layer> layers;
 	private double maxAltMapping;
 
 	private double minPolygonRedMapping;
@@ -75,8 +82,19 @@ public class DiscreteTreeToKML {
 
 	private double polygonsRadiusMultiplier;
 	private double branchWidth;
-	private PrintWriter writer;
+	private String kmlPath;
+	private boolean streamKml = false;
+	private boolean kmzOutput = false;
+	private NavigationEnum navigation = NavigationEnum.RHUMB;
 	private TreeImporter importer;
+	// posterior set, summarised over all trees when given
+	private String treesPath;
+	private int burnIn;
+	private int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+	private int queueDepth = 2 * numberOfWorkers;
+	private int numberOfParsers = 1;
+	private boolean fastBurnIn = false;
+	private TransitionAccumulator transitionAccumulator;
 
 	private enum branchesMappingEnum {
 		TIME, DISTANCE, DEFAULT, USER
@@ -85,7 +103,7 @@ public class DiscreteTreeToKML {
 	private branchesMappingEnum branchesColorMapping;
 	private branchesMappingEnum branchesOpacityMapping;
 	private branchesMappingEnum altitudeMapping;
-	private Random generator;
+	private StateResolver stateResolver;
 
 	public DiscreteTreeToKML() {
 
@@ -94,8 +112,6 @@ public class DiscreteTreeToKML {
 		branchesOpacityMapping = branchesMappingEnum.TIME;
 		altitudeMapping = branchesMappingEnum.DISTANCE;
 
-		generator = new Random();
-
 	}// END: DiscreteTreeToKML()
 
 	public void setTimescaler(double timescaler) {
@@ -119,13 +135,49 @@ public class DiscreteTreeToKML {
 	}
 
 	public void setKmlWriterPath(String kmlpath) throws FileNotFoundException {
-		writer = new PrintWriter(kmlpath);
+		kmlPath = kmlpath;
+	}
+
+	public void setStreamKml(boolean streamKmlBoolean) {
+		streamKml = streamKmlBoolean;
+	}
+
+	public void setKmzOutput(boolean kmzOutputBoolean) {
+		kmzOutput = kmzOutputBoolean;
+	}
+
+	public void setNavigation(NavigationEnum mode) {
+		navigation = mode;
 	}
 
 	public void setTreePath(String path) throws FileNotFoundException {
 		importer = new NexusImporter(new FileReader(path));
 	}
 
+	public void setTreesPath(String path) {
+		treesPath = path;
+	}
+
+	public void setBurnIn(int burnInDouble) {
+		burnIn = burnInDouble;
+	}
+
+	public void setNumberOfWorkers(int number) {
+		numberOfWorkers = number;
+	}
+
+	public void setQueueDepth(int depth) {
+		queueDepth = depth;
+	}
+
+	public void setNumberOfParsers(int number) {
+		numberOfParsers = number;
+	}
+
+	public void setFastBurnIn(boolean fastBurnInBoolean) {
+		fastBurnIn = fastBurnInBoolean;
+	}
+
 	public void setTable(InteractiveTableModel tableModel) {
 		table = tableModel;
 	}
@@ -214,6 +266,9 @@ public class DiscreteTreeToKML {
 
 		tree = (RootedTree) importer.importNextTree();
 
+		// pick always the same states in this run
+		stateResolver = new StateResolver(tree, stateAttName, time, true);
+
 		// this is for time calculations
 		rootHeight = tree.getHeight(tree.getRootNode());
 
@@ -223,24 +278,43 @@ public class DiscreteTreeToKML {
 				- (rootHeight * DayInMillis * DaysInYear * timescaler), mrsd
 				.getTime(), numberOfIntervals);
 
+		if (treesPath != null) {
+			AnalyzePosteriorTrees();
+		}
+
 		// this is to generate kml output
-		KMLGenerator kmloutput = new KMLGenerator();
-		layers = new ArrayList<Layer>();
+		Generator kmloutput = streamKml ? new StreamingKMLGenerator()
+				: new KMLGenerator();
+		kmloutput.setNavigation(navigation);
+		PrintWriter writer = kmzOutput ? KMZOutputStream.createWriter(kmlPath)
+				: new PrintWriter(kmlPath);
+		LayerWriter layerWriter = new LayerWriter(kmloutput, writer, timeLine);
 
 		// Execute threads
 		final int NTHREDS = Runtime.getRuntime().availableProcessors();
 		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
 
-		executor.submit(new Places());
-		executor.submit(new Branches());
-		executor.submit(new Circles());
+		Future<Layer> places = executor.submit(new Places());
+		Future<Layer> branches = executor.submit(new Branches());
+		Future<Layer> circles = executor.submit(new Circles());
+		Future<Layer> jumps = transitionAccumulator == null ? null : executor
+				.submit(new PosteriorJumps());
 		executor.shutdown();
-		// Wait until all threads are finished
-		while (!executor.isTerminated()) {
-		}
 
-		// generate kml
-		kmloutput.generate(writer, timeLine, layers);
+		// in a fixed order, each written as soon as it is done
+		try {
+
+			layerWriter.add(places);
+			layerWriter.add(branches);
+			layerWriter.add(circles);
+			if (jumps != null) {
+				layerWriter.add(jumps);
+			}
+			layerWriter.close();
+
+		} finally {
+			writer.close();
+		}
 
 		// stop timing
 		time += System.currentTimeMillis();
@@ -250,9 +324,9 @@ public class DiscreteTreeToKML {
 	// //////////////
 	// ---PLACES---//
 	// //////////////
-	private class Places implements Runnable {
+	private class Places implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
 
 			// this is for Places folder:
 			String placesDescription = null;
@@ -272,16 +346,16 @@ public class DiscreteTreeToKML {
 						longitude, latitude), 0, 0));
 			}
 
-			layers.add(placesLayer);
+			return placesLayer;
 		}
 	}// END: Places class
 
 	// ////////////////
 	// ---BRANCHES---//
 	// ////////////////
-	private class Branches implements Runnable {
+	private class Branches implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
 
 			try {
 
@@ -291,34 +365,38 @@ public class DiscreteTreeToKML {
 
 				double treeHeightMax = Utils.getTreeHeightMax(tree);
 
+				// coordinates of every state, read once
+				LocationRegistry locations = new LocationRegistry(table);
+
 				int branchStyleId = 1;
 				for (Node node : tree.getNodes()) {
 					if (!tree.isRoot(node)) {
 
-						String state = getRandomState((String) node
-								.getAttribute(stateAttName), true);
+						String state = stateResolver.getState(node);
 
 						Node parentNode = tree.getParent(node);
 
-						String parentState = getRandomState((String) parentNode
-								.getAttribute(stateAttName), false);
+						String parentState = stateResolver
+								.getState(parentNode);
 
 						if (state != null && parentState != null) {
 
 							if (!state.toLowerCase().equals(
 									parentState.toLowerCase())) {
 
-								float longitude = Utils.matchStateCoordinate(
-										table, state, 2);
-								float latitude = Utils.matchStateCoordinate(
-										table, state, 1);
+								int location = locations.getId(state);
+								int parentLocation = locations
+										.getId(parentState);
+
+								float longitude = locations
+										.getLongitude(location);
+								float latitude = locations
+										.getLatitude(location);
 
-								float parentLongitude = Utils
-										.matchStateCoordinate(table,
-												parentState, 2);
-								float parentLatitude = Utils
-										.matchStateCoordinate(table,
-												parentState, 1);
+								float parentLongitude = locations
+										.getLongitude(parentLocation);
+								float parentLatitude = locations
+										.getLatitude(parentLocation);
 
 								double nodeHeight = Utils.getNodeHeight(tree,
 										node);
@@ -463,21 +541,23 @@ public class DiscreteTreeToKML {
 					}// END: root check
 				}// END: nodes loop
 
-				layers.add(branchesLayer);
+				return branchesLayer;
 
 			} catch (RuntimeException e) {
 				e.printStackTrace();
 			}
 
-		}// END: run
+			return null;
+
+		}// END: call
 	}// END Branches class
 
 	// ///////////////
 	// ---CIRCLES---//
 	// ///////////////
-	private class Circles implements Runnable {
+	private class Circles implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
 
 			try {
 
@@ -485,8 +565,9 @@ public class DiscreteTreeToKML {
 				String circlesDescription = null;
 				Layer circlesLayer = new Layer("Circles", circlesDescription);
 
-				double[][] numberOfLineages = CountLineagesHoldingState(
-						numberOfIntervals, rootHeight);
+				double[][] numberOfLineages = transitionAccumulator == null ? CountLineagesHoldingState(
+						numberOfIntervals, rootHeight)
+						: CountPosteriorLineages(numberOfIntervals, rootHeight);
 				double lineagesCountMax = Utils.get2DArrayMax(numberOfLineages);
 
 				int circleStyleId = 1;
@@ -565,93 +646,191 @@ public class DiscreteTreeToKML {
 					}// END: row loop
 				}// END: col loop
 
-				layers.add(circlesLayer);
+				return circlesLayer;
 
 			} catch (RuntimeException e) {
 				e.printStackTrace();
 			}
 
-		}// END: run
-	}// END: Circles class
+			return null;
 
-	private double[][] CountLineagesHoldingState(int numberOfIntervals,
-			double rootHeight) {
+		}// END: call
+	}// END: Circles class
 
+	// ///////////////////////
+	// ---POSTERIOR JUMPS---//
+	// ///////////////////////
+	private class PosteriorJumps implements Callable<Layer> {
+
+		public Layer call() {
+
+			// this is for Posterior jumps folder:
+			String jumpsDescription = null;
+			Layer jumpsLayer = new Layer("Posterior jumps", jumpsDescription);
+
+			LocationRegistry locations = new LocationRegistry(table);
+
+			double[][] expectedJumps = transitionAccumulator
+					.getExpectedJumps();
+			double[][] support = transitionAccumulator.getSupport();
+			double expectedJumpsMax = Utils.get2DArrayMax(expectedJumps);
+
+			// jumps are summaries of the whole tree span
+			double startTime = mrsd.minus((int) (rootHeight * DaysInYear
+					* timescaler));
+
+			int jumpStyleId = 1;
+			for (int from = 0; from < locations.size(); from++) {
+				for (int to = 0; to < locations.size(); to++) {
+
+					if (support[from][to] > 0) {
+
+						float parentLongitude = locations
+								.getLongitude(from);
+						float parentLatitude = locations.getLatitude(from);
+						float longitude = locations.getLongitude(to);
+						float latitude = locations.getLatitude(to);
+
+						double maxAltitude = Utils.map(Utils.rhumbDistance(
+								parentLongitude, parentLatitude,
+								longitude, latitude), 0, EarthRadius, 0,
+								maxAltMapping);
+
+						/**
+						 * Color mapping
+						 * 
+						 * More expected jumps darker the colors
+						 * */
+						int red = (int) Utils.map(expectedJumps[from][to],
+								0, expectedJumpsMax, minBranchRedMapping,
+								maxBranchRedMapping);
+
+						int green = (int) Utils.map(
+								expectedJumps[from][to], 0,
+								expectedJumpsMax, minBranchGreenMapping,
+								maxBranchGreenMapping);
+
+						int blue = (int) Utils.map(expectedJumps[from][to],
+								0, expectedJumpsMax, minBranchBlueMapping,
+								maxBranchBlueMapping);
+
+						/**
+						 * Opacity and width mapping
+						 * 
+						 * Better supported jumps more opaque and wider
+						 * */
+						int alpha = (int) Utils.map(support[from][to], 0,
+								1, minBranchOpacityMapping,
+								maxBranchOpacityMapping);
+
+						Color col = new Color(red, green, blue, alpha);
+
+						Style jumpsStyle = new Style(col, branchWidth
+								* support[from][to]);
+						jumpsStyle.setId("jump_style" + jumpStyleId);
+						jumpStyleId++;
+
+						jumpsLayer.addItem(new Line((locations
+								.getName(from)
+								+ ":" + locations.getName(to)), // string name
+								new Coordinates(parentLongitude,
+										parentLatitude), startTime, // startime
+								jumpsStyle, // style startstyle
+								new Coordinates(longitude, latitude), // endcoords
+								startTime, // double endtime
+								jumpsStyle, // style endstyle
+								maxAltitude, // double maxAltitude
+								0.0) // double duration
+								);
+
+					}// END: support check
+				}// END: to loop
+			}// END: from loop
+
+			return jumpsLayer;
+
+		}// END: call
+	}// END: PosteriorJumps class
+
+	private void AnalyzePosteriorTrees() throws IOException, ImportException {
+
+		System.out.println("Analyzing trees...");
+
+		final LocationRegistry locations = new LocationRegistry(table);
+
+		// the heights Circles are drawn at
+		double[] heights = new double[numberOfIntervals - 1];
 		double delta = rootHeight / numberOfIntervals;
-		double[][] numberOfLineages = new double[(numberOfIntervals - 1)][table
-				.getRowCount() + 1];
-
-		for (int i = 0; i < (numberOfIntervals - 1); i++) {
-			numberOfLineages[i][0] = rootHeight - ((i + 1) * delta);
+		for (int i = 0; i < heights.length; i++) {
+			heights[i] = rootHeight - ((i + 1) * delta);
 		}
 
-		for (int i = 0; i < (numberOfIntervals - 1); i++) {
-			for (int j = 0; j < table.getRowCount(); j++) {
+		transitionAccumulator = new TransitionAccumulator(locations.size(),
+				heights);
 
-				int numberOfLineagesOfState = 0;
+		// ties broken with the seed of the single tree states
+		final long seed = time;
 
-				for (Node node : tree.getNodes()) {
-					if (!tree.isRoot(node)) {
+		TreesPipeline pipeline = new TreesPipeline(queueDepth, numberOfWorkers);
 
-						String state = getRandomState((String) node
-								.getAttribute(stateAttName), false);
+		TreesPipeline.TreeTaskFactory analyzeTreeFactory = new TreesPipeline.TreeTaskFactory() {
 
-						Node parentNode = tree.getParent(node);
+			public Runnable createTask(RootedTree currentTree, int treeIndex) {
 
-						String parentState = getRandomState((String) parentNode
-								.getAttribute(stateAttName), false);
+				return new AnalyzeDiscreteTree(currentTree, stateAttName,
+						locations, transitionAccumulator, seed, treeIndex);
 
-						if (state != null && parentState != null) {
+			}
+		};
 
-							if ((tree.getHeight(node) <= numberOfLineages[i][0])
-									&& (tree.getHeight(parentNode) > numberOfLineages[i][0])) {
+		int readTrees = pipeline.process(treesPath, numberOfParsers,
+				fastBurnIn, burnIn, analyzeTreeFactory);
 
-								String name = String.valueOf(table.getValueAt(
-										j, 0));
+		if ((readTrees - burnIn) <= 0.0) {
+			throw new RuntimeException("Burnt too many trees!");
+		} else {
+			System.out.println("Analyzed " + (readTrees - burnIn)
+					+ " trees with burn-in of " + burnIn);
+		}
 
-								if ((state.toLowerCase().equals(parentState
-										.toLowerCase()))
-										&& (parentState.toLowerCase()
-												.equals(name.toLowerCase()))) {
+	}// END: AnalyzePosteriorTrees
 
-									numberOfLineagesOfState++;
+	/*
+	 * Same layout as CountLineagesHoldingState, lineages averaged over the
+	 * posterior trees
+	 */
+	private double[][] CountPosteriorLineages(int numberOfIntervals,
+			double rootHeight) {
 
-								}// END: state
-							}// END: height check
-						}// END: null check
-					}// END: root check
-				}// END: node loop
+		LocationRegistry locations = new LocationRegistry(table);
+		double[][] occupancy = transitionAccumulator.getOccupancy();
 
-				numberOfLineages[i][j + 1] = numberOfLineagesOfState;
+		double[][] numberOfLineages = new double[numberOfIntervals - 1][table
+				.getRowCount() + 1];
+		double delta = rootHeight / numberOfIntervals;
+		for (int i = 0; i < (numberOfIntervals - 1); i++) {
 
-			}// END: col loop
-		}// END: row loop
+			numberOfLineages[i][0] = rootHeight - ((i + 1) * delta);
+			for (int j = 0; j < table.getRowCount(); j++) {
+				int location = locations.getId(String.valueOf(table
+						.getValueAt(j, 0)));
+				numberOfLineages[i][j + 1] = occupancy[i][location];
+			}
+		}
 
 		return numberOfLineages;
-	}// END: CountLineagesHoldingState
+	}// END: CountPosteriorLineages
 
-	private String getRandomState(String state, boolean verbose) {
-
-		// pick always the same states in this run
-		generator.setSeed(time);
-
-		if (!state.contains("+")) {// single state so return state
-			return state;
-
-		} else {// this breaks ties
-
-			if (verbose)
-				System.out.println("Found combined " + stateAttName
-						+ " attribute: " + state);
-
-			state = Utils.pickRand(state.split("\\+"), generator);
-
-			if (verbose)
-				System.out.println("Randomly picking: " + state);
+	private double[][] CountLineagesHoldingState(int numberOfIntervals,
+			double rootHeight) {
 
-			return state;
+		String[] locations = new String[table.getRowCount()];
+		for (int j = 0; j < table.getRowCount(); j++) {
+			locations[j] = String.valueOf(table.getValueAt(j, 0));
 		}
 
-	}// END: getRandomState
+		return Utils.countLineagesHoldingState(tree, stateResolver
+				.getStates(), locations, numberOfIntervals, rootHeight);
+	}// END: CountLineagesHoldingState
 
-}// END: DiscreteTreeToKML class
\ No newline at end of file
+}// END: DiscreteTreeToKML class
@@ -5,7 +5,6 @@ import gui.InteractiveTableModel;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.List;
-import java.util.Random;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
@@ -15,6 +14,8 @@ import jebl.evolution.trees.RootedTree;
 import processing.core.PApplet;
 import processing.core.PFont;
 import structure.Coordinates;
+import utils.LocationRegistry;
+import utils.StateResolver;
 import utils.Utils;
 
 @SuppressWarnings("serial")
@@ -53,7 +54,7 @@ public class DiscreteTreeToProcessing extends PApplet {
 
 	private double branchWidth;
 	private double polygonsRadiusMultiplier;
-	private Random generator;
+	private StateResolver stateResolver;
 
 	// min/max longitude
 	private float minX, maxX;
@@ -162,8 +163,6 @@ public class DiscreteTreeToProcessing extends PApplet {
 			minY = -90;
 			maxY = 90;
 
-			generator = new Random();
-
 			// will improve font rendering speed with default renderer
 			hint(ENABLE_NATIVE_FONTS);
 			PFont plotFont = createFont("Monaco", 12);
@@ -189,6 +188,9 @@ public class DiscreteTreeToProcessing extends PApplet {
 		// start timing
 		time = -System.currentTimeMillis();
 
+		// pick always the same states in this run
+		stateResolver = new StateResolver(tree, stateAttName, time, true);
+
 		noLoop();
 		smooth();
 		mapBackground.drawMapBackground();
@@ -262,30 +264,32 @@ public class DiscreteTreeToProcessing extends PApplet {
 
 		double treeHeightMax = Utils.getTreeHeightMax(tree);
 
+		// coordinates of every state, read once
+		LocationRegistry locations = new LocationRegistry(table);
+
 		for (Node node : tree.getNodes()) {
 			if (!tree.isRoot(node)) {
 
-				String state = getRandomState((String) node
-						.getAttribute(stateAttName), true);
+				String state = stateResolver.getState(node);
 
 				Node parentNode = tree.getParent(node);
 
-				String parentState = getRandomState((String) parentNode
-						.getAttribute(stateAttName), false);
+				String parentState = stateResolver.getState(parentNode);
 
 				if (state != null && parentState != null) {
 
 					if (!state.toLowerCase().equals(parentState.toLowerCase())) {
 
-						float longitude = Utils.matchStateCoordinate(table,
-								state, 2);
-						float latitude = Utils.matchStateCoordinate(table,
-								state, 1);
+						int location = locations.getId(state);
+						int parentLocation = locations.getId(parentState);
+
+						float longitude = locations.getLongitude(location);
+						float latitude = locations.getLatitude(location);
 
-						float parentLongitude = Utils.matchStateCoordinate(
-								table, parentState, 2);
-						float parentLatitude = Utils.matchStateCoordinate(
-								table, parentState, 1);
+						float parentLongitude = locations
+								.getLongitude(parentLocation);
+						float parentLatitude = locations
+								.getLatitude(parentLocation);
 
 						float x0 = map(parentLongitude, minX, maxX, 0, width);
 						float y0 = map(parentLatitude, maxY, minY, 0, height);
@@ -411,77 +415,13 @@ public class DiscreteTreeToProcessing extends PApplet {
 	private double[][] CountLineagesHoldingState(int numberOfIntervals,
 			double rootHeight) {
 
-		double delta = rootHeight / numberOfIntervals;
-		double[][] numberOfLineages = new double[(numberOfIntervals - 1)][table
-				.getRowCount() + 1];
-
-		for (int i = 0; i < (numberOfIntervals - 1); i++) {
-			numberOfLineages[i][0] = rootHeight - ((i + 1) * delta);
+		String[] locations = new String[table.getRowCount()];
+		for (int j = 0; j < table.getRowCount(); j++) {
+			locations[j] = String.valueOf(table.getValueAt(j, 0));
 		}
 
-		for (int i = 0; i < (numberOfIntervals - 1); i++) {
-			for (int j = 0; j < table.getRowCount(); j++) {
-
-				int numberOfLineagesOfState = 0;
-
-				for (Node node : tree.getNodes()) {
-					if (!tree.isRoot(node)) {
-
-						String state = getRandomState((String) node
-								.getAttribute(stateAttName), false);
-
-						Node parentNode = tree.getParent(node);
-
-						String parentState = getRandomState((String) parentNode
-								.getAttribute(stateAttName), false);
-
-						if ((tree.getHeight(node) <= numberOfLineages[i][0])
-								&& (tree.getHeight(parentNode) > numberOfLineages[i][0])) {
-
-							String name = String
-									.valueOf(table.getValueAt(j, 0));
-
-							if ((state.toLowerCase().equals(parentState
-									.toLowerCase()))
-									&& (parentState.toLowerCase().equals(name
-											.toLowerCase()))) {
-
-								numberOfLineagesOfState++;
-
-							}
-						}
-					}
-				}// END: node loop
-
-				numberOfLineages[i][j + 1] = numberOfLineagesOfState;
-
-			}// END: col loop
-		}// END: row loop
-
-		return numberOfLineages;
+		return Utils.countLineagesHoldingState(tree, stateResolver
+				.getStates(), locations, numberOfIntervals, rootHeight);
 	}// END: CountLineagesHoldingState
 
-	private String getRandomState(String state, boolean verbose) {
-
-		generator.setSeed(time);
-
-		if (!state.contains("+")) {
-			return state;
-
-		} else {// this breaks ties
-
-			if (verbose)
-				System.out.println("Found combined " + stateAttName
-						+ " attribute: " + state);
-
-			state = Utils.pickRand(state.split("\\+"), generator);
-
-			if (verbose)
-				System.out.println("Randomly picking: " + state);
-
-			return state;
-		}
-
-	}// END: getRandomState
-
 }// END: PlotOnMap class
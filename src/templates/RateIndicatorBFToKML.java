@@ -1,6 +1,10 @@
 package templates;
 
+import generator.Generator;
 import generator.KMLGenerator;
+import generator.KMZOutputStream;
+import generator.LayerWriter;
+import generator.StreamingKMLGenerator;
 import gui.InteractiveTableModel;
 
 import java.awt.Color;
@@ -10,8 +14,10 @@ import java.io.PrintWriter;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import jebl.evolution.io.ImportException;
 import structure.Coordinates;
@@ -20,8 +26,10 @@ import structure.Line;
 import structure.Place;
 import structure.Style;
 import structure.TimeLine;
+import utils.GeoIntermediate.NavigationEnum;
 import utils.Holder;
-import utils.ReadLog;
+import utils.LocationRegistry;
+import utils.LogColumnMeans;
 import utils.Utils;
 import utils.Utils.PoissonPriorEnum;
 
@@ -30,9 +38,11 @@ public class RateIndicatorBFToKML {
 	public static long time;
 
 	private InteractiveTableModel table;
-	private ReadLog indicators;
-	private List<Layer> layers;
-	private PrintWriter writer;
+	private LogColumnMeans indicators;
+	private String kmlPath;
+	private boolean streamKml = false;
+	private boolean kmzOutput = false;
+	private NavigationEnum navigation = NavigationEnum.RHUMB;
 	private int numberOfIntervals;
 	private double maxAltMapping;
 	private double bfCutoff;
@@ -100,12 +110,25 @@ public class RateIndicatorBFToKML {
 		table = tableModel;
 	}
 
-	public void setLogFilePath(String path, double burnIn) {
-		indicators = new ReadLog(path, burnIn);
+	public void setLogFilePath(String path, double burnIn) throws IOException {
+		indicators = new LogColumnMeans(path, burnIn, Runtime.getRuntime()
+				.availableProcessors());
 	}
 
 	public void setKmlWriterPath(String kmlpath) throws FileNotFoundException {
-		writer = new PrintWriter(kmlpath);
+		kmlPath = kmlpath;
+	}
+
+	public void setStreamKml(boolean streamKmlBoolean) {
+		streamKml = streamKmlBoolean;
+	}
+
+	public void setKmzOutput(boolean kmzOutputBoolean) {
+		kmzOutput = kmzOutputBoolean;
+	}
+
+	public void setNavigation(NavigationEnum mode) {
+		navigation = mode;
 	}
 
 	public void setMinBranchRedMapping(double min) {
@@ -158,24 +181,33 @@ public class RateIndicatorBFToKML {
 				combin, bayesFactors).ComputeBFTest();
 
 		// this is to generate kml output
-		KMLGenerator kmloutput = new KMLGenerator();
-		layers = new ArrayList<Layer>();
+		Generator kmloutput = streamKml ? new StreamingKMLGenerator()
+				: new KMLGenerator();
+		kmloutput.setNavigation(navigation);
+		TimeLine timeLine = new TimeLine(Double.NaN, Double.NaN,
+				numberOfIntervals);
+		PrintWriter writer = kmzOutput ? KMZOutputStream.createWriter(kmlPath)
+				: new PrintWriter(kmlPath);
+		LayerWriter layerWriter = new LayerWriter(kmloutput, writer, timeLine);
 
 		// Execute threads
 		final int NTHREDS = Runtime.getRuntime().availableProcessors();
 		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
 
-		executor.submit(new Places());
-		executor.submit(new Rates());
+		Future<Layer> places = executor.submit(new Places());
+		Future<Layer> rates = executor.submit(new Rates());
 		executor.shutdown();
-		// Wait until all threads are finished
-		while (!executor.isTerminated()) {
-		}
 
-		// generate kml
-		TimeLine timeLine = new TimeLine(Double.NaN, Double.NaN,
-				numberOfIntervals);
-		kmloutput.generate(writer, timeLine, layers);
+		// in a fixed order, each written as soon as it is done
+		try {
+
+			layerWriter.add(places);
+			layerWriter.add(rates);
+			layerWriter.close();
+
+		} finally {
+			writer.close();
+		}
 
 		// stop timing
 		time += System.currentTimeMillis();
@@ -185,9 +217,9 @@ public class RateIndicatorBFToKML {
 	// //////////////
 	// ---PLACES---//
 	// //////////////
-	private class Places implements Runnable {
+	private class Places implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
 
 			// this is for Places folder:
 			String placesDescription = null;
@@ -207,16 +239,16 @@ public class RateIndicatorBFToKML {
 						longitude, latitude), 0, 0));
 			}
 
-			layers.add(placesLayer);
+			return placesLayer;
 		}
 	}// END: Places
 
 	// /////////////
 	// ---RATES---//
 	// /////////////
-	private class Rates implements Runnable {
+	private class Rates implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
 
 			try {
 
@@ -232,6 +264,9 @@ public class RateIndicatorBFToKML {
 
 				double bfMax = Math.log(Utils.getListMax(bayesFactors));
 
+				// coordinates of every state, read once
+				LocationRegistry locations = new LocationRegistry(table);
+
 				int branchStyleId = 1;
 
 				for (int i = 0; i < combin.size(); i++) {
@@ -266,15 +301,16 @@ public class RateIndicatorBFToKML {
 						String state = combin.get(i).split(":")[1];
 						String parentState = combin.get(i).split(":")[0];
 
-						float longitude = Utils.matchStateCoordinate(table,
-								state, 2);
-						float latitude = Utils.matchStateCoordinate(table,
-								state, 1);
+						int location = locations.getId(state);
+						int parentLocation = locations.getId(parentState);
 
-						float parentLongitude = Utils.matchStateCoordinate(
-								table, parentState, 2);
-						float parentLatitude = Utils.matchStateCoordinate(
-								table, parentState, 1);
+						float longitude = locations.getLongitude(location);
+						float latitude = locations.getLatitude(location);
+
+						float parentLongitude = locations
+								.getLongitude(parentLocation);
+						float parentLatitude = locations
+								.getLatitude(parentLocation);
 
 						ratesLayer
 								.addItem(new Line(combin.get(i) + ", BF="
@@ -300,7 +336,7 @@ public class RateIndicatorBFToKML {
 					}
 				}
 
-				layers.add(ratesLayer);
+				return ratesLayer;
 
 			} catch (Exception e) {
 
@@ -308,7 +344,9 @@ public class RateIndicatorBFToKML {
 
 			}
 
-		}// END: run
+			return null;
+
+		}// END: call
 	}// END: Rates
 
 }// END: RateIndicatorBF
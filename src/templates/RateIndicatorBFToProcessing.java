@@ -2,13 +2,15 @@ package templates;
 
 import gui.InteractiveTableModel;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import processing.core.PApplet;
 import processing.core.PFont;
 import utils.GeoIntermediate;
 import utils.Holder;
-import utils.ReadLog;
+import utils.LocationRegistry;
+import utils.LogColumnMeans;
 import utils.Utils;
 import utils.Utils.PoissonPriorEnum;
 
@@ -16,7 +18,7 @@ import utils.Utils.PoissonPriorEnum;
 public class RateIndicatorBFToProcessing extends PApplet {
 
 	private InteractiveTableModel table;
-	private ReadLog indicators;
+	private LogColumnMeans indicators;
 	private double bfCutoff;
 	private ArrayList<Double> bayesFactors;
 	private ArrayList<String> combin;
@@ -78,8 +80,9 @@ public class RateIndicatorBFToProcessing extends PApplet {
 		table = tableModel;
 	}
 
-	public void setLogFilePath(String path, double burnIn) {
-		indicators = new ReadLog(path, burnIn);
+	public void setLogFilePath(String path, double burnIn) throws IOException {
+		indicators = new LogColumnMeans(path, burnIn, Runtime.getRuntime()
+				.availableProcessors());
 	}
 
 	public void setMinBranchRedMapping(double min) {
@@ -211,6 +214,9 @@ public class RateIndicatorBFToProcessing extends PApplet {
 
 		float bfMax = (float) Math.log(Utils.getListMax(bayesFactors));
 
+		// coordinates of every state, read once
+		LocationRegistry locations = new LocationRegistry(table);
+
 		for (int i = 0; i < combin.size(); i++) {
 
 			if (bayesFactors.get(i) > bfCutoff) {
@@ -237,13 +243,14 @@ public class RateIndicatorBFToProcessing extends PApplet {
 				String state = combin.get(i).split(":")[1];
 				String parentState = combin.get(i).split(":")[0];
 
-				float longitude = Utils.matchStateCoordinate(table, state, 2);
-				float latitude = Utils.matchStateCoordinate(table, state, 1);
+				int location = locations.getId(state);
+				int parentLocation = locations.getId(parentState);
+
+				float longitude = locations.getLongitude(location);
+				float latitude = locations.getLatitude(location);
 
-				float parentLongitude = Utils.matchStateCoordinate(table,
-						parentState, 2);
-				float parentLatitude = Utils.matchStateCoordinate(table,
-						parentState, 1);
+				float parentLongitude = locations.getLongitude(parentLocation);
+				float parentLatitude = locations.getLatitude(parentLocation);
 
 				float x0 = map(parentLongitude, minX, maxX, 0, width);
 				float y0 = map(parentLatitude, maxY, minY, 0, height);
@@ -273,6 +280,9 @@ public class RateIndicatorBFToProcessing extends PApplet {
 
 		float bfMax = (float) Math.log(Utils.getListMax(bayesFactors));
 
+		// coordinates of every state, read once
+		LocationRegistry locations = new LocationRegistry(table);
+
 		for (int i = 0; i < combin.size(); i++) {
 
 			if (bayesFactors.get(i) > bfCutoff) {
@@ -299,13 +309,14 @@ public class RateIndicatorBFToProcessing extends PApplet {
 				String state = combin.get(i).split(":")[1];
 				String parentState = combin.get(i).split(":")[0];
 
-				float longitude = Utils.matchStateCoordinate(table, state, 2);
-				float latitude = Utils.matchStateCoordinate(table, state, 1);
+				int location = locations.getId(state);
+				int parentLocation = locations.getId(parentState);
+
+				float longitude = locations.getLongitude(location);
+				float latitude = locations.getLatitude(location);
 
-				float parentLongitude = Utils.matchStateCoordinate(table,
-						parentState, 2);
-				float parentLatitude = Utils.matchStateCoordinate(table,
-						parentState, 1);
+				float parentLongitude = locations.getLongitude(parentLocation);
+				float parentLatitude = locations.getLatitude(parentLocation);
 
 				GeoIntermediate rhumbIntermediate = new GeoIntermediate(
 						parentLongitude, parentLatitude, longitude, latitude,
@@ -1,6 +1,10 @@
 package templates;
 
+import generator.Generator;
 import generator.KMLGenerator;
+import generator.KMZOutputStream;
+import generator.LayerWriter;
+import generator.StreamingKMLGenerator;
 
 import java.awt.Color;
 import java.io.FileNotFoundException;
@@ -10,31 +14,39 @@ import java.io.PrintWriter;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
 import jebl.evolution.io.NexusImporter;
 import jebl.evolution.io.TreeImporter;
 import jebl.evolution.trees.RootedTree;
+import math.MathUtils;
 import structure.Coordinates;
 import structure.Layer;
 import structure.Line;
 import structure.Polygon;
 import structure.Style;
 import structure.TimeLine;
+import utils.GeoIntermediate.NavigationEnum;
+import utils.PolygonSimplifier;
 import utils.ReadSliceHeights;
+import utils.SliceAccumulator;
 import utils.ThreadLocalSpreadDate;
+import utils.TreesPipeline;
 import utils.Utils;
 import contouring.ContourMaker;
 import contouring.ContourPath;
-import contouring.ContourWithSynder;
+import contouring.KernelDensityEstimator2D;
+import contouring.KernelDensityEstimator2D.ContourEngineEnum;
+import contouring.KernelDensityEstimator2D.KdeModeEnum;
 
 public class TimeSlicerToKML {
 
@@ -51,14 +63,19 @@ public class TimeSlicerToKML {
 	private static final int DaysInYear = 365;
 
 	// Concurrency stuff
-	private ConcurrentMap<Double, List<Coordinates>> slicesMap;
-	private RootedTree currentTree;
+	private SliceAccumulator slicesAccumulator;
+	private int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+	private int queueDepth = 2 * numberOfWorkers;
+	private int numberOfParsers = 1;
+	private boolean fastBurnIn = false;
+	private long seed = MathUtils.getSeed();
 
 	private TreeImporter treeImporter;
 
 	private RootedTree tree;
 	private int numberOfIntervals;
 	private double[] sliceHeights;
+	private double[] sliceTimes;
 
 	private double maxAltMapping;
 
@@ -86,7 +103,7 @@ public class TimeSlicerToKML {
 	private double timescaler;
 	private double treeRootHeight;
 	private double branchWidth;
-	private TreeImporter treesImporter;
+	private String treesPath;
 	private String mrsdString;
 	private int burnIn;
 	private boolean impute;
@@ -96,14 +113,19 @@ public class TimeSlicerToKML {
 	private String latitudeName;
 	private String rateString;
 	private String precisionString;
-	private List<Layer> layers;
-	private SimpleDateFormat formatter;
 	private String kmlPath;
+	private boolean streamKml = false;
+	private boolean kmzOutput = false;
+	private NavigationEnum navigation = NavigationEnum.RHUMB;
 	private TimeLine timeLine;
 	private double startTime;
 	private double endTime;
 	private double HPD;
 	private int gridSize;
+	private KdeModeEnum kdeMode = KdeModeEnum.EXACT;
+	private ContourEngineEnum contourEngine = ContourEngineEnum.SNYDER;
+	private double simplifyTolerance = 0.0;
+	private int sliceVertexBudget = 0;
 
 	public TimeSlicerToKML() {
 	}
@@ -132,8 +154,44 @@ public class TimeSlicerToKML {
 		treeImporter = new NexusImporter(new FileReader(path));
 	}
 
-	public void setTreesPath(String path) throws FileNotFoundException {
-		treesImporter = new NexusImporter(new FileReader(path));
+	public void setTreesPath(String path) {
+		treesPath = path;
+	}
+
+	public void setNumberOfWorkers(int number) {
+		numberOfWorkers = number;
+	}
+
+	public void setQueueDepth(int depth) {
+		queueDepth = depth;
+	}
+
+	public void setNumberOfParsers(int number) {
+		numberOfParsers = number;
+	}
+
+	public void setFastBurnIn(boolean fastBurnInBoolean) {
+		fastBurnIn = fastBurnInBoolean;
+	}
+
+	public void setKdeMode(KdeModeEnum mode) {
+		kdeMode = mode;
+	}
+
+	public void setContourEngine(ContourEngineEnum engine) {
+		contourEngine = engine;
+	}
+
+	public void setSimplifyTolerance(double km) {
+		simplifyTolerance = km;
+	}
+
+	public void setSliceVertexBudget(int budget) {
+		sliceVertexBudget = budget;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
 	}
 
 	public void setMrsdString(String mrsd) {
@@ -174,6 +232,18 @@ public class TimeSlicerToKML {
 		kmlPath = path;
 	}
 
+	public void setStreamKml(boolean streamKmlBoolean) {
+		streamKml = streamKmlBoolean;
+	}
+
+	public void setKmzOutput(boolean kmzOutputBoolean) {
+		kmzOutput = kmzOutputBoolean;
+	}
+
+	public void setNavigation(NavigationEnum mode) {
+		navigation = mode;
+	}
+
 	public void setMaxAltitudeMapping(double max) {
 		maxAltMapping = max;
 	}
@@ -271,102 +341,120 @@ public class TimeSlicerToKML {
 			break;
 		}
 
-		// this is to generate kml output
-		layers = new ArrayList<Layer>();
-
 		// Executor for threads
 		int NTHREDS = Runtime.getRuntime().availableProcessors();
-		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS * 2);
+		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
 
 		if (impute) {
 
 			System.out.println("Analyzing trees...");
 
 			// This is for collecting coordinates into polygons
-			slicesMap = new ConcurrentHashMap<Double, List<Coordinates>>();
+			slicesAccumulator = new SliceAccumulator(sliceHeights.length);
 
-			int readTrees = 1;
-			while (treesImporter.hasTree()) {
+			// sorted once, AnalyzeTree finds crossings by binary search
+			Arrays.sort(sliceHeights);
+			sliceTimes = generateSliceTimes(sliceHeights);
 
-				currentTree = (RootedTree) treesImporter.importNextTree();
+			TreesPipeline pipeline = new TreesPipeline(queueDepth,
+					numberOfWorkers);
 
-				if (readTrees >= burnIn) {
+			TreesPipeline.TreeTaskFactory analyzeTreeFactory = new TreesPipeline.TreeTaskFactory() {
 
-					executor.submit(new AnalyzeTree(currentTree,
-							precisionString, coordinatesName, rateString,
-							sliceHeights, timescaler, mrsd, slicesMap,
-							useTrueNoise));
+				public Runnable createTask(RootedTree currentTree, int treeIndex) {
 
-					// new AnalyzeTree(currentTree,
-					// precisionString, coordinatesName, rateString,
-					// sliceHeights, timescaler, mrsd, slicesMap,
-					// useTrueNoise).run();
+					return new AnalyzeTree(currentTree, precisionString,
+							coordinatesName, rateString, sliceHeights,
+							slicesAccumulator, useTrueNoise, seed, treeIndex);
 
-					if (readTrees % 500 == 0) {
-						System.out.print(readTrees + " trees... ");
-					}
-				}// END: if burn-in
-
-				readTrees++;
+				}
+			};
 
-			}// END: while has trees
+			int readTrees = pipeline.process(treesPath, numberOfParsers,
+					fastBurnIn, burnIn, analyzeTreeFactory);
 
 			if ((readTrees - burnIn) <= 0.0) {
 				throw new RuntimeException("Burnt too many trees!");
 			} else {
-				System.out.println("Analyzed " + (int) (readTrees - burnIn - 1)
+				System.out.println("Analyzed " + (int) (readTrees - burnIn)
 						+ " trees with burn-in of " + burnIn);
 			}
 
-			// Wait until all threads are finished
-			executor.shutdown();
-			while (!executor.isTerminated()) {
-			}
-
 			System.out.println("Generating polygons...");
 
-			Iterator<Double> iterator = slicesMap.keySet().iterator();
-			executor = Executors.newFixedThreadPool(NTHREDS);
-			formatter = new SimpleDateFormat("yyyy-MM-dd G", Locale.US);
 			startTime = timeLine.getStartTime();
 			endTime = timeLine.getEndTime();
 
-			System.out.println("Iterating through Map...");
-
-			int polygonsStyleId = 1;
-			while (iterator.hasNext()) {
-
-				System.out.println("Key " + polygonsStyleId + "...");
-
-				Double sliceTime = iterator.next();
-
-				// executor.submit(new Polygons(sliceTime, polygonsStyleId));
-				new Polygons(sliceTime, polygonsStyleId).run();
-
-				polygonsStyleId++;
-			}// END: while has next
+			System.out.println("Iterating through slices...");
 
 		}// END: if impute
 
+		// this is to generate kml output
+		Generator kmloutput = streamKml ? new StreamingKMLGenerator()
+				: new KMLGenerator();
+		kmloutput.setNavigation(navigation);
+		PrintWriter writer = kmzOutput ? KMZOutputStream.createWriter(kmlPath)
+				: new PrintWriter(kmlPath);
+		LayerWriter layerWriter = new LayerWriter(kmloutput, writer, timeLine);
+
+		Future<Layer> branches = null;
 		switch (analysisType) {
 		case 1:
 		case 3:
 			System.out.println("Generating branches...");
-			executor.submit(new Branches());
+			branches = executor.submit(new Branches());
 			break;
 		case 2:
 			break;
 		}
 
-		executor.shutdown();
-		while (!executor.isTerminated()) {
-		}
+		// slices by time, then branches, each written as soon as it is done
+		try {
+
+			if (impute) {
+
+				// slices in flight, oldest first
+				LinkedList<Future<Layer>> polygons = new LinkedList<Future<Layer>>();
+
+				int polygonsStyleId = 1;
+				for (int i = sliceHeights.length - 1; i >= 0; i--) {
+
+					if (slicesAccumulator.getSize(i) == 0) {
+						continue;
+					}
+
+					System.out.println("Slice " + polygonsStyleId + "...");
 
-		System.out.println("Writing to kml...");
+					polygons.add(executor.submit(new Polygons(i,
+							polygonsStyleId)));
+
+					polygonsStyleId++;
+
+					// bounds the slice layers held at any time
+					if (polygons.size() > 2 * NTHREDS) {
+						layerWriter.add(polygons.removeFirst());
+					}
+
+				}// END: slices loop
+
+				while (!polygons.isEmpty()) {
+					layerWriter.add(polygons.removeFirst());
+				}
+
+			}// END: if impute
+
+			if (branches != null) {
+				layerWriter.add(branches);
+			}
 
-		PrintWriter writer = new PrintWriter(kmlPath);
-		KMLGenerator kmloutput = new KMLGenerator();
-		kmloutput.generate(writer, timeLine, layers);
+			System.out.println("Writing to kml...");
+
+			layerWriter.close();
+
+		} finally {
+			executor.shutdownNow();
+			writer.close();
+		}
 
 		// stop timing
 		time += System.currentTimeMillis();
@@ -376,19 +464,23 @@ public class TimeSlicerToKML {
 	// ///////////////////////////
 	// ---CONCURRENT POLYGONS---//
 	// ///////////////////////////
-	public class Polygons implements Runnable {
+	public class Polygons implements Callable<Layer> {
 
-		private double sliceTime;
+		private int sliceIndex;
 		private int polygonsStyleId;
 
-		public Polygons(Double sliceTime, int polygonsStyleId) {
-			this.sliceTime = sliceTime;
+		public Polygons(int sliceIndex, int polygonsStyleId) {
+			this.sliceIndex = sliceIndex;
 			this.polygonsStyleId = polygonsStyleId;
 		}
 
-		public void run() throws OutOfMemoryError {
+		public Layer call() throws OutOfMemoryError {
 
-			// System.out.println(sliceTime + " " + polygonsStyleId);
+			double sliceTime = sliceTimes[sliceIndex];
+
+			// SimpleDateFormat is not thread safe
+			SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd G",
+					Locale.US);
 
 			Layer polygonsLayer = new Layer("Time_Slice_"
 					+ formatter.format(sliceTime), null);
@@ -412,25 +504,21 @@ public class TimeSlicerToKML {
 			Style polygonsStyle = new Style(color, 0);
 			polygonsStyle.setId("polygon_style" + polygonsStyleId);
 
-			List<Coordinates> list = slicesMap.get(sliceTime);
-
-			double[] x = new double[list.size()];
-			double[] y = new double[list.size()];
+			double[] x = slicesAccumulator.getLatitudes(sliceIndex);
+			double[] y = slicesAccumulator.getLongitudes(sliceIndex);
+			slicesAccumulator.clear(sliceIndex);
 
-			for (int i = 0; i < list.size(); i++) {
-
-				if (list.get(i) == null) {
-					System.out.println("null found");
-				}
-
-				x[i] = list.get(i).getLatitude();
-				y[i] = list.get(i).getLongitude();
+			// slices already run one per thread
+			ContourMaker contourMaker = KernelDensityEstimator2D
+					.createContourMaker(x, y, gridSize, kdeMode, contourEngine,
+							1);
+			ContourPath[] paths = contourMaker.getContourPaths(HPD);
 
+			if (simplifyTolerance > 0 || sliceVertexBudget > 0) {
+				paths = new PolygonSimplifier(simplifyTolerance,
+						sliceVertexBudget).simplify(paths);
 			}
 
-			ContourMaker contourMaker = new ContourWithSynder(x, y, gridSize);
-			ContourPath[] paths = contourMaker.getContourPaths(HPD);
-
 			int pathCounter = 1;
 			for (ContourPath path : paths) {
 
@@ -454,18 +542,17 @@ public class TimeSlicerToKML {
 
 			}// END: paths loop
 
-			layers.add(polygonsLayer);
-			slicesMap.remove(sliceTime);
+			return polygonsLayer;
 
-		}// END: run
+		}// END: call
 	}// END: Polygons
 
 	// ///////////////////////////
 	// ---CONCURRENT BRANCHES---//
 	// ///////////////////////////
-	private class Branches implements Runnable {
+	private class Branches implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
 
 			try {
 
@@ -551,13 +638,15 @@ public class TimeSlicerToKML {
 					}// END: root check
 				}// END: node loop
 
-				layers.add(branchesLayer);
+				return branchesLayer;
 
 			} catch (RuntimeException e) {
 				e.printStackTrace();
 			}
 
-		}// END: run
+			return null;
+
+		}// END: call
 	}// END: Branches class
 
 	private TimeLine generateTreeTimeLine(RootedTree tree) {
@@ -587,6 +676,18 @@ public class TimeSlicerToKML {
 		return timeSlices;
 	}// END: generateTimeSlices
 
+	private double[] generateSliceTimes(double[] sliceHeights) {
+
+		double[] sliceTimes = new double[sliceHeights.length];
+
+		for (int i = 0; i < sliceHeights.length; i++) {
+			sliceTimes[i] = mrsd.minus((int) (sliceHeights[i] * DaysInYear
+					* timescaler));
+		}
+
+		return sliceTimes;
+	}// END: generateSliceTimes
+
 	private TimeLine generateCustomTimeLine(double[] timeSlices) {
 
 		// This is a general time span for all of the trees
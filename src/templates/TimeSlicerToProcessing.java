@@ -5,28 +5,28 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
 import jebl.evolution.io.NexusImporter;
 import jebl.evolution.io.TreeImporter;
 import jebl.evolution.trees.RootedTree;
+import math.MathUtils;
 import processing.core.PApplet;
 import structure.Coordinates;
 import structure.TimeLine;
 import utils.ReadSliceHeights;
+import utils.SliceAccumulator;
 import utils.ThreadLocalSpreadDate;
+import utils.TreesPipeline;
 import utils.Utils;
 import contouring.ContourMaker;
 import contouring.ContourPath;
-import contouring.ContourWithSynder;
+import contouring.KernelDensityEstimator2D;
+import contouring.KernelDensityEstimator2D.ContourEngineEnum;
+import contouring.KernelDensityEstimator2D.KdeModeEnum;
 
 @SuppressWarnings("serial")
 public class TimeSlicerToProcessing extends PApplet {
@@ -42,12 +42,17 @@ public class TimeSlicerToProcessing extends PApplet {
 	private static final int DaysInYear = 365;
 
 	// Concurrency stuff
-	private ConcurrentMap<Double, List<Coordinates>> slicesMap;
-	private RootedTree currentTree;
+	private SliceAccumulator slicesAccumulator;
+	private int numberOfWorkers = Runtime.getRuntime().availableProcessors();
+	private int queueDepth = 2 * numberOfWorkers;
+	private int numberOfParsers = 1;
+	private boolean fastBurnIn = false;
+	private long seed = MathUtils.getSeed();
 
 	private RootedTree tree;
 	private int numberOfIntervals;
 	private double[] sliceHeights;
+	private double[] sliceTimes;
 
 	private double minPolygonRedMapping;
 	private double minPolygonGreenMapping;
@@ -70,7 +75,7 @@ public class TimeSlicerToProcessing extends PApplet {
 	private double maxBranchOpacityMapping;
 
 	private double branchWidth;
-	private TreeImporter treesImporter;
+	private String treesPath;
 	private TreeImporter treeImporter;
 	private double treeRootHeight;
 	private String precisionString;
@@ -89,6 +94,8 @@ public class TimeSlicerToProcessing extends PApplet {
 	private double burnIn;
 	private double HPD;
 	private int gridSize;
+	private KdeModeEnum kdeMode = KdeModeEnum.EXACT;
+	private ContourEngineEnum contourEngine = ContourEngineEnum.SNYDER;
 
 	private MapBackground mapBackground;
 	private float minX, maxX;
@@ -121,8 +128,36 @@ public class TimeSlicerToProcessing extends PApplet {
 		treeImporter = new NexusImporter(new FileReader(path));
 	}
 
-	public void setTreesPath(String path) throws FileNotFoundException {
-		treesImporter = new NexusImporter(new FileReader(path));
+	public void setTreesPath(String path) {
+		treesPath = path;
+	}
+
+	public void setNumberOfWorkers(int number) {
+		numberOfWorkers = number;
+	}
+
+	public void setQueueDepth(int depth) {
+		queueDepth = depth;
+	}
+
+	public void setNumberOfParsers(int number) {
+		numberOfParsers = number;
+	}
+
+	public void setFastBurnIn(boolean fastBurnInBoolean) {
+		fastBurnIn = fastBurnInBoolean;
+	}
+
+	public void setKdeMode(KdeModeEnum mode) {
+		kdeMode = mode;
+	}
+
+	public void setContourEngine(ContourEngineEnum engine) {
+		contourEngine = engine;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
 	}
 
 	public void setMrsdString(String mrsd) {
@@ -264,26 +299,28 @@ public class TimeSlicerToProcessing extends PApplet {
 
 	private void drawPolygons() throws OutOfMemoryError {
 
-		System.out.println("Iterating through Map...");
-
-		Set<Double> hostKeys = slicesMap.keySet();
-		Iterator<Double> iterator = hostKeys.iterator();
+		System.out.println("Iterating through slices...");
 
+		// oldest slice first
 		int polygonsStyleId = 1;
-		while (iterator.hasNext()) {
+		for (int i = sliceHeights.length - 1; i >= 0; i--) {
+
+			if (slicesAccumulator.getSize(i) == 0) {
+				continue;
+			}
 
-			System.out.println("Key " + polygonsStyleId + "...");
+			System.out.println("Slice " + polygonsStyleId + "...");
 
-			Double sliceTime = iterator.next();
-			drawPolygon(sliceTime);
+			drawPolygon(i);
 
 			polygonsStyleId++;
-			// slicesMap.remove(sliceTime);
 		}
 
 	}// END: drawPolygons
 
-	private void drawPolygon(Double sliceTime) throws OutOfMemoryError {
+	private void drawPolygon(int sliceIndex) throws OutOfMemoryError {
+
+		double sliceTime = sliceTimes[sliceIndex];
 
 		/**
 		 * Color and Opacity mapping
@@ -303,19 +340,11 @@ public class TimeSlicerToProcessing extends PApplet {
 		stroke(red, green, blue, alpha);
 		fill(red, green, blue, alpha);
 
-		List<Coordinates> list = slicesMap.get(sliceTime);
-
-		double[] x = new double[list.size()];
-		double[] y = new double[list.size()];
-
-		for (int i = 0; i < list.size(); i++) {
+		double[] x = slicesAccumulator.getLatitudes(sliceIndex);
+		double[] y = slicesAccumulator.getLongitudes(sliceIndex);
 
-			x[i] = list.get(i).getLatitude();
-			y[i] = list.get(i).getLongitude();
-
-		}
-
-		ContourMaker contourMaker = new ContourWithSynder(x, y, gridSize);
+		ContourMaker contourMaker = KernelDensityEstimator2D.createContourMaker(
+				x, y, gridSize, kdeMode, contourEngine);
 		ContourPath[] paths = contourMaker.getContourPaths(HPD);
 
 		for (ContourPath path : paths) {
@@ -355,7 +384,7 @@ public class TimeSlicerToProcessing extends PApplet {
 
 		}// END: paths loop
 
-		slicesMap.remove(sliceTime);
+		slicesAccumulator.clear(sliceIndex);
 
 	}// END: drawPolygon()
 
@@ -435,43 +464,30 @@ public class TimeSlicerToProcessing extends PApplet {
 			endTime = timeLine.getEndTime();
 
 			// This is for slice times
-			slicesMap = new ConcurrentHashMap<Double, List<Coordinates>>();
-
-			System.out.println("Analyzing trees...");
+			slicesAccumulator = new SliceAccumulator(sliceHeights.length);
 
-			// Executor for threads
-			int NTHREDS = Runtime.getRuntime().availableProcessors();
-			ExecutorService executor = Executors.newFixedThreadPool(NTHREDS * 2);
+			// sorted once, AnalyzeTree finds crossings by binary search
+			Arrays.sort(sliceHeights);
+			sliceTimes = generateSliceTimes(sliceHeights);
 
-			int readTrees = 0;
-			while (treesImporter.hasTree()) {
+			System.out.println("Analyzing trees...");
 
-				currentTree = (RootedTree) treesImporter.importNextTree();
+			TreesPipeline pipeline = new TreesPipeline(queueDepth,
+					numberOfWorkers);
 
-				if (readTrees >= burnIn) {
+			TreesPipeline.TreeTaskFactory analyzeTreeFactory = new TreesPipeline.TreeTaskFactory() {
 
-					executor.submit(new AnalyzeTree(currentTree,
-							precisionString, coordinatesName, rateString,
-							sliceHeights, timescaler, mrsd, slicesMap,
-							useTrueNoise));
+				public Runnable createTask(RootedTree currentTree, int treeIndex) {
 
-					// new AnalyzeTree(currentTree,
-					// precisionString, coordinatesName, rateString,
-					// sliceHeights, timescaler, mrsd, slicesMap,
-					// useTrueNoise).run();
+					return new AnalyzeTree(currentTree, precisionString,
+							coordinatesName, rateString, sliceHeights,
+							slicesAccumulator, useTrueNoise, seed, treeIndex);
 
-					if (readTrees % burnIn == 0) {
-						System.out.print(readTrees + " trees... ");
-					}
 				}
+			};
 
-				readTrees++;
-			}
-
-			// Wait until all threads are finished
-			executor.shutdown();
-			while (!executor.isTerminated()) {
-			}
+			int readTrees = pipeline.process(treesPath, numberOfParsers,
+					fastBurnIn, (int) burnIn, analyzeTreeFactory);
 
 			if ((readTrees - burnIn) <= 0.0) {
 				throw new RuntimeException("Burnt too many trees!");
@@ -511,6 +527,18 @@ public class TimeSlicerToProcessing extends PApplet {
 		return timeSlices;
 	}// END: generateTimeSlices
 
+	private double[] generateSliceTimes(double[] sliceHeights) {
+
+		double[] sliceTimes = new double[sliceHeights.length];
+
+		for (int i = 0; i < sliceHeights.length; i++) {
+			sliceTimes[i] = mrsd.minus((int) (sliceHeights[i] * DaysInYear
+					* timescaler));
+		}
+
+		return sliceTimes;
+	}// END: generateSliceTimes
+
 	private TimeLine generateCustomTimeLine(double[] timeSlices) {
 
 		// This is a general time span for all of the trees
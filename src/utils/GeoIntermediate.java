@@ -1,115 +1,234 @@
 package utils;
 
+/*
+ * Intermediate points of a path split into equal slices, written in a single
+ * pass into a buffer reused for every path of the same slice count. Rhumb
+ * lines are interpolated in closed form: latitude is linear along the line
+ * and longitude linear in Mercator latitude. Great circle arcs are slerped
+ * between the unit vectors of the end points, stepping by a fixed rotation.
+ * Altitude profiles of the arcs are precomputed per slice count.
+ * */
+
 public class GeoIntermediate {
 
 	// Earths radius in km
 	static final double EarthRadius = 6371.0;
+	// Mercator latitude differences below this are treated as E-W lines
+	private static final double MIN_MERCATOR_DIFFERENCE = 1e-12;
+	// sine of the arc angle below which end points coincide or are antipodal
+	private static final double MIN_ARC_SINE = 1e-12;
+
+	private final int sliceCount;
+	// longitude, latitude pairs of the sliceCount + 1 points
+	private final double[] path;
+	// i * (sliceCount - i) * 2 / (sliceCount * (sliceCount - 1)), 0 at both
+	// ends and sliceCount / (2 * (sliceCount - 1)) half way, per point
+	private final double[] altitudeProfile;
 	private double coords[][];
 
-	private enum navigationEnum {
+	public enum NavigationEnum {
 		RHUMB, ARC
 	}
 
-	private navigationEnum navigationSwitcher;
+	private NavigationEnum navigationSwitcher;
+
+	public GeoIntermediate(int sliceCount) {
+		this(sliceCount, NavigationEnum.RHUMB);
+	}
+
+	public GeoIntermediate(int sliceCount, NavigationEnum navigation) {
+
+		navigationSwitcher = navigation;
+
+		this.sliceCount = sliceCount;
+		path = new double[2 * (sliceCount + 1)];
+
+		altitudeProfile = new double[sliceCount + 1];
+		if (sliceCount > 1) {
+			double norm = 2.0 / ((double) sliceCount * (sliceCount - 1));
+			for (int i = 0; i <= sliceCount; i++) {
+				altitudeProfile[i] = norm * i * (sliceCount - i);
+			}
+		}
+
+	}// END: GeoIntermediate()
 
 	public GeoIntermediate(double startLon, double startLat, double endLon,
 			double endLat, int sliceCount) {
 
-		navigationSwitcher = navigationEnum.RHUMB;
+		this(sliceCount);
+		interpolate(startLon, startLat, endLon, endLat);
 
-		// Calculate full distance
-		double distance = 0;
-		switch (navigationSwitcher) {
-		case RHUMB:
-			distance = Utils.rhumbDistance(startLon, startLat, endLon, endLat);
-			break;
+	}// END: GeoIntermediate()
 
-		case ARC:
-			distance = Utils.greatCircDistSpherLawCos(startLon, startLat,
-					endLon, endLat);
-			break;
+	/*
+	 * Fills the path buffer, end points are kept as given. Antipodal end points
+	 * have no unique great circle and are joined by a rhumb line.
+	 *
+	 * @return longitude, latitude pairs, overwritten by the next call
+	 */
+	public double[] interpolate(double startLon, double startLat,
+			double endLon, double endLat) {
+
+		coords = null;
+
+		path[0] = startLon;
+		path[1] = startLat;
+
+		if (navigationSwitcher != NavigationEnum.ARC
+				|| !slerp(startLon, startLat, endLon, endLat)) {
+			rhumb(startLon, startLat, endLon, endLat);
 		}
 
-		double distanceSlice = distance / (double) sliceCount;
+		path[2 * sliceCount] = endLon;
+		path[2 * sliceCount + 1] = endLat;
+
+		return path;
+	}// END: interpolate
+
+	private void rhumb(double startLon, double startLat, double endLon,
+			double endLat) {
 
 		// Convert to radians
-		double rlon1 = Utils.longNormalise(Math.toRadians(startLon));
+		double rlon1 = Math.toRadians(startLon);
 		double rlat1 = Math.toRadians(startLat);
-		double rlon2 = Utils.longNormalise(Math.toRadians(endLon));
 		double rlat2 = Math.toRadians(endLat);
 
-		coords = new double[sliceCount + 1][2];
-		coords[0][0] = startLon;
-		coords[0][1] = startLat;
-		coords[sliceCount][0] = endLon;
-		coords[sliceCount][1] = endLat;
+		// take the shorter way across the 180 meridian
+		double dLon = Utils.longNormalise(Math.toRadians(endLon) - rlon1);
+		double dLat = rlat2 - rlat1;
+
+		double phi1 = mercatorLatitude(rlat1);
+		double dPhi = mercatorLatitude(rlat2) - phi1;
+		boolean eastWest = Math.abs(dPhi) < MIN_MERCATOR_DIFFERENCE
+				|| Double.isInfinite(dPhi) || Double.isNaN(dPhi);
 
 		for (int i = 1; i < sliceCount; i++) {
 
-			distance = distanceSlice;
-			double rDist = distance / EarthRadius;
+			double fraction = (double) i / sliceCount;
+			double rlat = rlat1 + fraction * dLat;
+			double rlon = eastWest ? rlon1 + fraction * dLon : rlon1 + dLon
+					* (mercatorLatitude(rlat) - phi1) / dPhi;
 
-			double bearing = 0;
-			// Calculate the bearing
-			switch (navigationSwitcher) {
-			case RHUMB:
-				bearing = Utils.rhumbBearing(rlon1, rlat1, rlon2, rlat2);
-				break;
+			path[2 * i] = Math.toDegrees(Utils.longNormalise(rlon));
+			path[2 * i + 1] = Math.toDegrees(rlat);
 
-			case ARC:
-				bearing = Utils.bearing(rlon1, rlat1, rlon2, rlat2);
-				break;
-			}
+		}// END: sliceCount loop
+
+	}// END: rhumb
 
-			// use the bearing and the start point to find the
-			// destination
-			double newLonRad = Utils.longNormalise(rlon1
-					+ Math.atan2(Math.sin(bearing) * Math.sin(rDist)
-							* Math.cos(rlat1), Math.cos(rDist)
-							- Math.sin(rlat1) * Math.sin(rlat2)));
+	/*
+	 * Points rotated from the start towards the end by equal angles, only the
+	 * set up and the conversion back to degrees use trigonometry
+	 *
+	 * @return false if the arc is undefined (antipodal end points)
+	 */
+	private boolean slerp(double startLon, double startLat, double endLon,
+			double endLat) {
 
-			double newLatRad = Math.asin(Math.sin(rlat1) * Math.cos(rDist)
-					+ Math.cos(rlat1) * Math.sin(rDist) * Math.cos(bearing));
+		double rlon1 = Math.toRadians(startLon);
+		double rlat1 = Math.toRadians(startLat);
+		double rlon2 = Math.toRadians(endLon);
+		double rlat2 = Math.toRadians(endLat);
+
+		// unit vectors of the end points
+		double px = Math.cos(rlat1) * Math.cos(rlon1);
+		double py = Math.cos(rlat1) * Math.sin(rlon1);
+		double pz = Math.sin(rlat1);
+		double qx = Math.cos(rlat2) * Math.cos(rlon2);
+		double qy = Math.cos(rlat2) * Math.sin(rlon2);
+		double qz = Math.sin(rlat2);
+
+		// unit vector orthogonal to p, towards q
+		double dot = px * qx + py * qy + pz * qz;
+		double ux = qx - dot * px;
+		double uy = qy - dot * py;
+		double uz = qz - dot * pz;
+		double norm = Math.sqrt(ux * ux + uy * uy + uz * uz);
+
+		if (norm < MIN_ARC_SINE) {
+			if (dot < 0) {
+				return false;
+			}
+			// coinciding end points
+			for (int i = 1; i < sliceCount; i++) {
+				path[2 * i] = startLon;
+				path[2 * i + 1] = startLat;
+			}
+			return true;
+		}
 
-			// Convert from radians to degrees
-			double newLat = Math.toDegrees(newLatRad);
-			double newLon = Math.toDegrees(newLonRad);
+		ux /= norm;
+		uy /= norm;
+		uz /= norm;
 
-			coords[i][0] = newLon;
-			coords[i][1] = newLat;
+		double angle = Math.atan2(norm, dot) / sliceCount;
+		double stepCos = Math.cos(angle);
+		double stepSin = Math.sin(angle);
 
-			// This updates the input to calculate new bearing
-			rlon1 = newLonRad;
-			rlat1 = newLatRad;
+		double cos = 1.0;
+		double sin = 0.0;
+		for (int i = 1; i < sliceCount; i++) {
 
-			switch (navigationSwitcher) {
-			case RHUMB:
-				distance = Utils.rhumbDistance(newLon, newLat, endLon, endLat);
-				break;
+			double nextCos = cos * stepCos - sin * stepSin;
+			sin = sin * stepCos + cos * stepSin;
+			cos = nextCos;
 
-			case ARC:
-				distance = Utils.greatCircDistSpherLawCos(newLon, newLat,
-						endLon, endLat);
-				break;
-			}
+			double x = cos * px + sin * ux;
+			double y = cos * py + sin * uy;
+			double z = cos * pz + sin * uz;
 
-			distanceSlice = distance / (sliceCount - i);
+			path[2 * i] = Math.toDegrees(Math.atan2(y, x));
+			path[2 * i + 1] = Math.toDegrees(Math.atan2(z, Math.sqrt(x * x
+					+ y * y)));
 
 		}// END: sliceCount loop
 
-	}// END: RhumbIntermediate()
+		return true;
+	}// END: slerp
+
+	/*
+	 * Altitude of point i on an arc scaled by maxAltitude, half way it is
+	 * maxAltitude * sliceCount / (2 * (sliceCount - 1))
+	 * */
+	public double getAltitude(int i, double maxAltitude) {
+		return maxAltitude * altitudeProfile[i];
+	}
 
+	public int getSliceCount() {
+		return sliceCount;
+	}
+
+	/*
+	 * Points of the last path as [point][longitude, latitude]
+	 * */
 	public double[][] getCoords() {
 
+		if (coords == null) {
+			coords = new double[sliceCount + 1][2];
+			for (int i = 0; i <= sliceCount; i++) {
+				coords[i][0] = path[2 * i];
+				coords[i][1] = path[2 * i + 1];
+			}
+		}
+
 		return coords;
 	}
 
+	public NavigationEnum getNavigation() {
+		return navigationSwitcher;
+	}
+
 	public void setRhumbNavigation() {
-		navigationSwitcher = navigationEnum.RHUMB;
+		navigationSwitcher = NavigationEnum.RHUMB;
 	}
 
 	public void setArcNavigation() {
-		navigationSwitcher = navigationEnum.ARC;
+		navigationSwitcher = NavigationEnum.ARC;
+	}
+
+	private static double mercatorLatitude(double rlat) {
+		return Math.log(Math.tan(rlat / 2 + Math.PI / 4));
 	}
 
-}// END: RhumbIntermediate class
+}// END: GeoIntermediate class
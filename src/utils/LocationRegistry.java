@@ -0,0 +1,85 @@
+package utils;
+
+import gui.InteractiveTableModel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Locations of a coordinates table (name, latitude, longitude) read once.
+ * Names are matched ignoring case and mapped to an int id indexing primitive
+ * coordinate arrays. As with Utils.matchStateCoordinate the last row of a
+ * repeated name wins, and unknown names or unreadable coordinates give NaN.
+ * */
+
+public class LocationRegistry {
+
+	public static final int NO_LOCATION = -1;
+
+	private static final int LATITUDE_COLUMN = 1;
+	private static final int LONGITUDE_COLUMN = 2;
+
+	private final Map<String, Integer> ids;
+	private final String[] names;
+	private final float[] latitudes;
+	private final float[] longitudes;
+
+	public LocationRegistry(InteractiveTableModel table) {
+
+		int rowCount = table.getRowCount();
+		ids = new HashMap<String, Integer>(2 * rowCount);
+		names = new String[rowCount];
+		latitudes = new float[rowCount];
+		longitudes = new float[rowCount];
+
+		for (int i = 0; i < rowCount; i++) {
+
+			names[i] = String.valueOf(table.getValueAt(i, 0));
+			latitudes[i] = parseCoordinate(table.getValueAt(i,
+					LATITUDE_COLUMN));
+			longitudes[i] = parseCoordinate(table.getValueAt(i,
+					LONGITUDE_COLUMN));
+
+			ids.put(names[i].toLowerCase(), i);
+
+		}// END: rows loop
+
+	}// END: LocationRegistry()
+
+	/*
+	 * @return id of the location, NO_LOCATION if there is none
+	 * */
+	public int getId(String state) {
+
+		Integer id = ids.get(state.toLowerCase());
+
+		return id == null ? NO_LOCATION : id;
+	}// END: getId
+
+	public float getLatitude(int id) {
+		return id == NO_LOCATION ? Float.NaN : latitudes[id];
+	}
+
+	public float getLongitude(int id) {
+		return id == NO_LOCATION ? Float.NaN : longitudes[id];
+	}
+
+	public String getName(int id) {
+		return names[id];
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	private static float parseCoordinate(Object value) {
+
+		try {
+			return Float.valueOf(String.valueOf(value));
+		} catch (NumberFormatException e) {
+			return Float.NaN;
+		}
+
+	}// END: parseCoordinate
+
+}// END: class
@@ -0,0 +1,409 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Means of the rate indicator columns of a BEAST log, the same rows and
+ * columns ReadLog reads (column names taken from the first line that is not
+ * a comment), without holding the rows in memory. One pass over the bytes
+ * counts the lines and notes where every LINES_PER_MARK-th line starts,
+ * then ranges of rows are memory-mapped and summed on several threads. 0/1
+ * (and other whole) values are summed in long counters, so the means do not
+ * depend on how the rows were split between threads.
+ * */
+
+public class LogColumnMeans {
+
+	// line starts noted every this many lines
+	private static final int LINES_PER_MARK = 256;
+	// upper bound on the byte range handed to one parser task
+	private static final long MAX_RANGE = 256 * 1024 * 1024;
+	// ranges per parser thread, for load balancing
+	private static final int RANGES_PER_PARSER = 4;
+	// whole values summed in long counters up to this magnitude
+	private static final double MAX_COUNTED = 1L << 52;
+
+	private final String path;
+	private final int parsersCount;
+
+	private long fileLength;
+	private int linesCount;
+	private int commentedLines;
+	private long[] marks;
+	private int marksCount;
+	private String header;
+
+	private int firstColumn;
+	private int ncol;
+	private int nrow;
+	private double[] means;
+
+	public LogColumnMeans(String path, double burnIn, int parsersCount)
+			throws IOException {
+
+		if (parsersCount < 1) {
+			throw new IllegalArgumentException(
+					"Number of parsers must be positive!");
+		}
+
+		this.path = path;
+		this.parsersCount = parsersCount;
+
+		scan();
+
+		if (header == null) {
+			throw new RuntimeException("No column names in " + path);
+		}
+
+		// rows as ReadLog numbers them, in lines of the file
+		int rowsCount = linesCount - commentedLines - 1;
+		int delete = (int) (rowsCount * burnIn) + 1;
+		nrow = rowsCount - delete;
+
+		if (nrow <= 0) {
+			throw new RuntimeException("Burnt too many states!");
+		}
+
+		String[] colNames = header.split("\t");
+
+		firstColumn = -1;
+		ncol = 0;
+		for (int col = 0; col < colNames.length; col++) {
+			if (colNames[col].contains("indicator")) {
+
+				if (firstColumn == -1) {
+					firstColumn = col;
+				}
+				ncol++;
+
+			}
+		}// END: column names loop
+
+		means = sumRows(delete, rowsCount);
+		for (int col = 0; col < ncol; col++) {
+			means[col] /= nrow;
+		}
+
+	}// END: LogColumnMeans()
+
+	public double[] getMeans() {
+		return means;
+	}
+
+	/*
+	 * @return number of rows past burn-in
+	 */
+	public int getRowCount() {
+		return nrow;
+	}
+
+	public int getColumnCount() {
+		return ncol;
+	}
+
+	/*
+	 * Counts lines and comments, keeps the column names and the start of
+	 * every LINES_PER_MARK-th line
+	 */
+	private void scan() throws IOException {
+
+		marks = new long[64];
+		marksCount = 0;
+		linesCount = 0;
+		commentedLines = 0;
+
+		InputStream in = new BufferedInputStream(new FileInputStream(path));
+
+		try {
+
+			ByteArrayOutputStream headerBytes = null;
+			byte[] buffer = new byte[1 << 20];
+			boolean lineStart = true;
+			long offset = 0;
+
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				for (int i = 0; i < read; i++) {
+
+					byte b = buffer[i];
+
+					if (lineStart) {
+
+						if (linesCount % LINES_PER_MARK == 0) {
+							addMark(offset + i);
+						}
+
+						if (b == '#') {
+							commentedLines++;
+						} else if (header == null && headerBytes == null) {
+							headerBytes = new ByteArrayOutputStream();
+						}
+
+						linesCount++;
+						lineStart = false;
+					}
+
+					if (b == '\n') {
+
+						lineStart = true;
+						if (headerBytes != null) {
+							header = stripReturn(headerBytes
+									.toString("UTF-8"));
+							headerBytes = null;
+						}
+
+					} else if (headerBytes != null) {
+						headerBytes.write(b);
+					}
+
+				}// END: bytes loop
+
+				offset += read;
+			}// END: read loop
+
+			if (headerBytes != null) {
+				header = stripReturn(headerBytes.toString("UTF-8"));
+			}
+
+			fileLength = offset;
+
+		} finally {
+			in.close();
+		}
+
+	}// END: scan
+
+	private void addMark(long offset) {
+
+		if (marksCount == marks.length) {
+			long[] temp = new long[marksCount << 1];
+			System.arraycopy(marks, 0, temp, 0, marksCount);
+			marks = temp;
+		}
+
+		marks[marksCount++] = offset;
+	}// END: addMark
+
+	/*
+	 * Sums the indicator columns of lines from <= line < to, split between the
+	 * parser threads
+	 */
+	private double[] sumRows(int from, int to) throws IOException {
+
+		long totalBytes = markAfter(to) - markBefore(from);
+		long rangeBytes = Math.min(MAX_RANGE, Math.max(1, totalBytes
+				/ (parsersCount * RANGES_PER_PARSER)));
+
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		ExecutorService executor = Executors.newFixedThreadPool(parsersCount);
+
+		try {
+
+			final FileChannel channel = file.getChannel();
+			List<Future<ColumnSums>> futures = new ArrayList<Future<ColumnSums>>();
+
+			int first = from;
+			while (first < to) {
+
+				// ranges end on marked lines, at least one mark apart
+				int last = Math.min(to, (first / LINES_PER_MARK + 1)
+						* LINES_PER_MARK);
+				while (last < to
+						&& markAfter(Math.min(to, last + LINES_PER_MARK))
+								- markBefore(first) <= rangeBytes) {
+					last = Math.min(to, last + LINES_PER_MARK);
+				}
+
+				final int rangeFrom = first;
+				final int rangeTo = last;
+				futures.add(executor.submit(new Callable<ColumnSums>() {
+
+					public ColumnSums call() throws Exception {
+						return sumRange(channel, rangeFrom, rangeTo);
+					}
+
+				}));
+
+				first = last;
+			}// END: ranges loop
+
+			executor.shutdown();
+
+			// merged in file order
+			long[] counts = new long[ncol];
+			double[] sums = new double[ncol];
+			for (Future<ColumnSums> future : futures) {
+
+				ColumnSums range = future.get();
+				for (int col = 0; col < ncol; col++) {
+					counts[col] += range.counts[col];
+					sums[col] += range.rest[col];
+				}
+
+			}// END: futures loop
+
+			for (int col = 0; col < ncol; col++) {
+				sums[col] += counts[col];
+			}
+
+			return sums;
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while reading log!");
+
+		} catch (ExecutionException e) {
+
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
+
+		} finally {
+			executor.shutdownNow();
+			file.close();
+		}
+
+	}// END: sumRows
+
+	/*
+	 * Start of the marked line at or before the line
+	 */
+	private long markBefore(int line) {
+		return marks[line / LINES_PER_MARK];
+	}
+
+	/*
+	 * Start of the marked line at or after the line, end of file past the last
+	 * mark
+	 */
+	private long markAfter(int line) {
+
+		int mark = (line + LINES_PER_MARK - 1) / LINES_PER_MARK;
+
+		return mark < marksCount ? marks[mark] : fileLength;
+	}// END: markAfter
+
+	private ColumnSums sumRange(FileChannel channel, int from, int to)
+			throws IOException {
+
+		ColumnSums sums = new ColumnSums();
+
+		long rangeStart = markBefore(from);
+		long rangeEnd = markAfter(to);
+		if (rangeEnd - rangeStart > Integer.MAX_VALUE) {
+			throw new IOException("Lines too long in " + path);
+		}
+
+		MappedByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY,
+				rangeStart, rangeEnd - rangeStart);
+		int limit = range.limit();
+		int position = 0;
+
+		int firstLine = from / LINES_PER_MARK * LINES_PER_MARK;
+		for (int line = firstLine; line < to; line++) {
+
+			int lineEnd = position;
+			while (lineEnd < limit && range.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+
+			if (line >= from) {
+				sumLine(range, position, lineEnd, line, sums);
+			}
+
+			position = lineEnd + 1;
+		}// END: lines loop
+
+		return sums;
+	}// END: sumRange
+
+	private void sumLine(MappedByteBuffer range, int start, int end,
+			int line, ColumnSums sums) {
+
+		int lastColumn = firstColumn + ncol;
+		int column = 0;
+		int fieldStart = start;
+
+		for (int i = start; i <= end && column < lastColumn; i++) {
+
+			if (i == end || range.get(i) == '\t') {
+
+				if (column >= firstColumn) {
+					addValue(range, fieldStart, i, column - firstColumn, sums);
+				}
+
+				column++;
+				fieldStart = i + 1;
+			}
+
+		}// END: bytes loop
+
+		if (column < lastColumn) {
+			throw new RuntimeException("Too few columns in line " + (line + 1)
+					+ " of " + path);
+		}
+
+	}// END: sumLine
+
+	private void addValue(MappedByteBuffer range, int start, int end,
+			int col, ColumnSums sums) {
+
+		if (end - start == 1) {
+
+			byte b = range.get(start);
+			if (b == '0') {
+				return;
+			} else if (b == '1') {
+				sums.counts[col]++;
+				return;
+			}
+
+		}
+
+		byte[] field = new byte[end - start];
+		for (int i = 0; i < field.length; i++) {
+			field[i] = range.get(start + i);
+		}
+
+		double value = Double.parseDouble(new String(field));
+		if (value == Math.rint(value) && Math.abs(value) <= MAX_COUNTED) {
+			sums.counts[col] += (long) value;
+		} else {
+			sums.rest[col] += value;
+		}
+
+	}// END: addValue
+
+	private static String stripReturn(String line) {
+		return line.endsWith("\r") ? line.substring(0, line.length() - 1)
+				: line;
+	}
+
+	private class ColumnSums {
+
+		private final long[] counts = new long[ncol];
+		private final double[] rest = new double[ncol];
+
+	}// END: ColumnSums class
+
+}// END: class
@@ -0,0 +1,232 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.io.NexusImporter;
+import jebl.evolution.trees.RootedTree;
+
+/*
+ * Parses the TREES block of a (possibly multi-GB) Nexus file on several cores.
+ * The file is indexed once at the byte level (see TreesFileIndex) for the
+ * start of every tree statement. Consecutive statements are grouped into
+ * memory-mapped byte ranges, and every range is parsed by its own thread
+ * with one importer, reading the file header (taxa block, TRANSLATE table)
+ * before the range so jebl resolves taxa exactly as it would for the whole
+ * file.
+ * */
+
+public class ParallelTreesParser {
+
+	// upper bound on the byte range handed to one parser task
+	private static final long MAX_RANGE = 256 * 1024 * 1024;
+	// ranges per parser thread, for load balancing
+	private static final int RANGES_PER_PARSER = 4;
+
+	private static final byte[] END_BLOCK = "\nEnd;\n".getBytes();
+
+	private final String path;
+	private final int parsersCount;
+	private final TreesFileIndex index;
+
+	private FileChannel channel;
+
+	public ParallelTreesParser(String path, int parsersCount) {
+
+		if (parsersCount < 1) {
+			throw new IllegalArgumentException(
+					"Number of parsers must be positive!");
+		}
+
+		this.path = path;
+		this.parsersCount = parsersCount;
+		this.index = new TreesFileIndex(path);
+
+	}// END: ParallelTreesParser()
+
+	/*
+	 * Parses every tree past burn-in into the pipeline, returns the number of
+	 * trees in the file (burn-in included)
+	 * */
+	public int process(TreesPipeline pipeline, int burnIn,
+			TreesPipeline.TreeTaskFactory factory) throws IOException,
+			ImportException {
+
+		index.scan();
+
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+
+		try {
+
+			channel = file.getChannel();
+
+			pipeline.start(factory);
+			try {
+
+				parseRanges(pipeline, burnIn);
+
+			} finally {
+				pipeline.finish();
+			}
+
+		} finally {
+			file.close();
+		}
+
+		return index.getTreesCount();
+	}// END: process
+
+	private void parseRanges(final TreesPipeline pipeline, int burnIn)
+			throws IOException, ImportException {
+
+		int treesCount = index.getTreesCount();
+		if (burnIn >= treesCount) {
+			return;
+		}
+
+		long totalBytes = index.getTreeEnd(treesCount - 1)
+				- index.getTreeStart(Math.max(burnIn, 0));
+		long rangeBytes = Math.min(MAX_RANGE, Math.max(1, totalBytes
+				/ (parsersCount * RANGES_PER_PARSER)));
+
+		ExecutorService executor = Executors
+				.newFixedThreadPool(parsersCount);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+		int first = Math.max(burnIn, 0);
+		while (first < treesCount) {
+
+			// at least one tree per range
+			int last = first + 1;
+			while (last < treesCount
+					&& index.getTreeEnd(last) - index.getTreeStart(first) <= rangeBytes) {
+				last++;
+			}
+
+			final int from = first;
+			final int to = last;
+			futures.add(executor.submit(new Callable<Void>() {
+
+				public Void call() throws Exception {
+					parseRange(pipeline, from, to);
+					return null;
+				}
+
+			}));
+
+			first = last;
+		}// END: ranges loop
+
+		executor.shutdown();
+
+		try {
+
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+
+		} catch (InterruptedException e) {
+
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while parsing trees!");
+
+		} catch (ExecutionException e) {
+
+			executor.shutdownNow();
+
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof ImportException) {
+				throw (ImportException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
+
+		}// END: try-catch
+
+	}// END: parseRanges
+
+	/*
+	 * One importer per range, reading the file header (taxa block, TRANSLATE
+	 * table) once and then the mapped statements in turn
+	 * */
+	private void parseRange(TreesPipeline pipeline, int from, int to)
+			throws IOException, ImportException {
+
+		long rangeStart = index.getTreeStart(from);
+		MappedByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY,
+				rangeStart, index.getTreeEnd(to - 1) - rangeStart);
+
+		Vector<InputStream> parts = new Vector<InputStream>();
+		parts.add(new ByteArrayInputStream(index.getHeader()));
+		parts.add(new BufferInputStream(range));
+		parts.add(new ByteArrayInputStream(END_BLOCK));
+
+		NexusImporter importer = new NexusImporter(new InputStreamReader(
+				new SequenceInputStream(parts.elements()), index.getCharset()));
+
+		for (int i = from; i < to; i++) {
+			pipeline.put((RootedTree) importer.importNextTree(), i);
+		}
+
+	}// END: parseRange
+
+	/*
+	 * Reads a mapped range without copying it
+	 * */
+	private static class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		public BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+
+			if (length == 0) {
+				return 0;
+			} else if (!buffer.hasRemaining()) {
+				return -1;
+			}
+
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+
+			return count;
+		}// END: read
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+	}// END: BufferInputStream class
+
+}// END: class
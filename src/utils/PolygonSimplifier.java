@@ -0,0 +1,410 @@
+package utils;
+
+import java.util.Arrays;
+
+import math.DiscreteStatistics;
+import contouring.ContourAttrib;
+import contouring.ContourPath;
+
+/*
+ * Douglas-Peucker simplification of contour rings (x latitude, y longitude).
+ * Every vertex is ranked once by the distance at which Douglas-Peucker would
+ * drop it, measured in km on a local equirectangular projection. Vertices
+ * ranked below the tolerance are dropped, and when a vertex budget is set the
+ * threshold is raised until all rings together fit it. A ring whose
+ * simplification crosses itself or any other ring (e.g. a nested hole) is
+ * simplified again with half its threshold until the crossing is gone.
+ * */
+
+public class PolygonSimplifier {
+
+	// a ring keeps at least this many distinct vertices
+	private static final int MIN_RING_VERTICES = 3;
+	// thresholds below this fraction of the original fall back to no
+	// simplification
+	private static final double MIN_THRESHOLD_FRACTION = 1e-3;
+
+	private static final double KmPerDegree = Math.toRadians(1.0)
+			* Utils.EarthRadius;
+
+	private final double tolerance;
+	private final int vertexBudget;
+
+	/*
+	 * @param tolerance in km
+	 *
+	 * @param vertexBudget max distinct vertices over all rings, 0 for no budget
+	 */
+	public PolygonSimplifier(double tolerance, int vertexBudget) {
+
+		if (tolerance < 0 || vertexBudget < 0) {
+			throw new IllegalArgumentException(
+					"Tolerance and vertex budget must not be negative!");
+		}
+
+		this.tolerance = tolerance;
+		this.vertexBudget = vertexBudget;
+
+	}// END: PolygonSimplifier()
+
+	public ContourPath[] simplify(ContourPath[] paths) {
+
+		int ringsCount = paths.length;
+		if (ringsCount == 0) {
+			return paths;
+		}
+
+		// project into km around the mean latitude
+		double meanLatitude = 0;
+		int pointsCount = 0;
+		for (ContourPath path : paths) {
+			for (double latitude : path.getAllX()) {
+				meanLatitude += latitude;
+				pointsCount++;
+			}
+		}
+		meanLatitude /= pointsCount;
+		double xScale = KmPerDegree * Math.cos(Math.toRadians(meanLatitude));
+
+		double[][] xKm = new double[ringsCount][];
+		double[][] yKm = new double[ringsCount][];
+		double[][] significance = new double[ringsCount][];
+		for (int r = 0; r < ringsCount; r++) {
+
+			double[] latitude = paths[r].getAllX();
+			double[] longitude = paths[r].getAllY();
+			int size = distinctSize(paths[r]);
+
+			xKm[r] = new double[size];
+			yKm[r] = new double[size];
+			for (int i = 0; i < size; i++) {
+				xKm[r][i] = longitude[i] * xScale;
+				yKm[r][i] = latitude[i] * KmPerDegree;
+			}
+
+			significance[r] = rank(xKm[r], yKm[r], paths[r].isClosed());
+		}// END: rings loop
+
+		double threshold = getThreshold(significance);
+
+		double[] ringThreshold = new double[ringsCount];
+		int[][] rings = new int[ringsCount][];
+		for (int r = 0; r < ringsCount; r++) {
+			ringThreshold[r] = threshold;
+			rings[r] = select(significance[r], threshold);
+		}
+
+		// restore crossings, original contours never cross
+		boolean changed = true;
+		while (changed) {
+
+			changed = false;
+			for (int r = 0; r < ringsCount; r++) {
+
+				if (ringThreshold[r] > 0
+						&& crosses(r, xKm, yKm, rings, paths)) {
+
+					ringThreshold[r] /= 2;
+					if (ringThreshold[r] < threshold
+							* MIN_THRESHOLD_FRACTION) {
+						ringThreshold[r] = 0;
+					}
+
+					rings[r] = select(significance[r], ringThreshold[r]);
+					changed = true;
+
+				}
+			}// END: rings loop
+		}// END: crossings loop
+
+		ContourPath[] simplified = new ContourPath[ringsCount];
+		for (int r = 0; r < ringsCount; r++) {
+			simplified[r] = toPath(paths[r], rings[r]);
+		}
+
+		return simplified;
+	}// END: simplify
+
+	/*
+	 * Vertices of a closed ring without its repeated closing point
+	 * */
+	private int distinctSize(ContourPath path) {
+
+		int size = path.getAllX().length;
+		if (path.isClosed() && size > 1) {
+			size--;
+		}
+
+		return size;
+	}// END: distinctSize
+
+	/*
+	 * Douglas-Peucker distance at which every vertex is dropped, never larger
+	 * than the one of the vertex splitting its span. Anchors are never dropped.
+	 * */
+	private double[] rank(double[] x, double[] y, boolean closed) {
+
+		int size = x.length;
+		double[] significance = new double[size];
+		if (size <= MIN_RING_VERTICES) {
+			Arrays.fill(significance, Double.POSITIVE_INFINITY);
+			return significance;
+		}
+
+		// spans are given as [from, to] over indices modulo size
+		int[] stackFrom = new int[size];
+		int[] stackTo = new int[size];
+		double[] stackLimit = new double[size];
+		int stackSize = 0;
+
+		significance[0] = Double.POSITIVE_INFINITY;
+		if (closed) {
+
+			// the farthest vertex from the first one splits the ring
+			int farthest = 1;
+			double farthestDistance = 0;
+			for (int i = 1; i < size; i++) {
+				double distance = Math.hypot(x[i] - x[0], y[i] - y[0]);
+				if (distance > farthestDistance) {
+					farthestDistance = distance;
+					farthest = i;
+				}
+			}
+			significance[farthest] = Double.POSITIVE_INFINITY;
+
+			stackFrom[stackSize] = 0;
+			stackTo[stackSize] = farthest;
+			stackLimit[stackSize++] = Double.POSITIVE_INFINITY;
+			stackFrom[stackSize] = farthest;
+			stackTo[stackSize] = size;
+			stackLimit[stackSize++] = Double.POSITIVE_INFINITY;
+
+		} else {
+
+			significance[size - 1] = Double.POSITIVE_INFINITY;
+			stackFrom[stackSize] = 0;
+			stackTo[stackSize] = size - 1;
+			stackLimit[stackSize++] = Double.POSITIVE_INFINITY;
+
+		}// END: closed check
+
+		while (stackSize > 0) {
+
+			stackSize--;
+			int from = stackFrom[stackSize];
+			int to = stackTo[stackSize];
+			double limit = stackLimit[stackSize];
+			if (to - from < 2) {
+				continue;
+			}
+
+			int end = to % size;
+			int split = -1;
+			double splitDistance = -1;
+			for (int i = from + 1; i < to; i++) {
+				double distance = segmentDistance(x[i], y[i], x[from],
+						y[from], x[end], y[end]);
+				if (distance > splitDistance) {
+					splitDistance = distance;
+					split = i;
+				}
+			}
+
+			double value = Math.min(splitDistance, limit);
+			significance[split] = value;
+
+			stackFrom[stackSize] = from;
+			stackTo[stackSize] = split;
+			stackLimit[stackSize++] = value;
+			stackFrom[stackSize] = split;
+			stackTo[stackSize] = to;
+			stackLimit[stackSize++] = value;
+
+		}// END: spans loop
+
+		// keep a triangle of the most significant vertices
+		double[] sorted = significance.clone();
+		double floor = DiscreteStatistics.select(sorted, size
+				- MIN_RING_VERTICES, 0, size);
+		for (int i = 0; i < size; i++) {
+			if (significance[i] >= floor) {
+				significance[i] = Double.POSITIVE_INFINITY;
+			}
+		}
+
+		return significance;
+	}// END: rank
+
+	private double getThreshold(double[][] significance) {
+
+		int finiteCount = 0;
+		int keptCount = 0;
+		for (double[] ring : significance) {
+			for (double value : ring) {
+				if (value >= tolerance) {
+					keptCount++;
+				}
+				if (value < Double.POSITIVE_INFINITY) {
+					finiteCount++;
+				}
+			}
+		}
+
+		if (vertexBudget == 0 || keptCount <= vertexBudget) {
+			return tolerance;
+		}
+
+		// anchors always stay, share the rest of the budget
+		int anchorsCount = 0;
+		double[] finite = new double[finiteCount];
+		int index = 0;
+		for (double[] ring : significance) {
+			for (double value : ring) {
+				if (value < Double.POSITIVE_INFINITY) {
+					finite[index++] = value;
+				} else {
+					anchorsCount++;
+				}
+			}
+		}
+
+		int available = vertexBudget - anchorsCount;
+		if (available <= 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		// keep vertices strictly above the (available + 1)-th largest value
+		double budgetThreshold = DiscreteStatistics.select(finite,
+				finite.length - available - 1, 0, finite.length);
+
+		return Math.max(tolerance, Math.nextUp(budgetThreshold));
+	}// END: getThreshold
+
+	/*
+	 * Indices of the vertices kept at the threshold
+	 * */
+	private int[] select(double[] significance, double threshold) {
+
+		int count = 0;
+		for (double value : significance) {
+			if (value >= threshold) {
+				count++;
+			}
+		}
+
+		int[] indices = new int[count];
+		for (int i = 0, j = 0; i < significance.length; i++) {
+			if (significance[i] >= threshold) {
+				indices[j++] = i;
+			}
+		}
+
+		return indices;
+	}// END: select
+
+	/*
+	 * Whether the simplified ring r crosses itself or another simplified ring
+	 * */
+	private boolean crosses(int r, double[][] x, double[][] y,
+			int[][] rings, ContourPath[] paths) {
+
+		int[] ring = rings[r];
+		boolean closed = paths[r].isClosed();
+		int segments = closed ? ring.length : ring.length - 1;
+
+		for (int a = 0; a < segments; a++) {
+
+			int a1 = ring[a];
+			int a2 = ring[(a + 1) % ring.length];
+
+			for (int o = 0; o < x.length; o++) {
+
+				int[] other = rings[o];
+				boolean otherClosed = paths[o].isClosed();
+				int otherSegments = otherClosed ? other.length
+						: other.length - 1;
+
+				for (int b = (o == r) ? a + 1 : 0; b < otherSegments; b++) {
+
+					int b1 = other[b];
+					int b2 = other[(b + 1) % other.length];
+
+					// adjacent segments of the same ring share a vertex
+					if (o == r && (a1 == b2 || a2 == b1)) {
+						continue;
+					}
+
+					if (intersect(x[r][a1], y[r][a1], x[r][a2], y[r][a2],
+							x[o][b1], y[o][b1], x[o][b2], y[o][b2])) {
+						return true;
+					}
+
+				}// END: other segments loop
+			}// END: rings loop
+		}// END: segments loop
+
+		return false;
+	}// END: crosses
+
+	private ContourPath toPath(ContourPath path, int[] indices) {
+
+		double[] latitude = path.getAllX();
+		double[] longitude = path.getAllY();
+		boolean closed = path.isClosed();
+
+		int size = closed ? indices.length + 1 : indices.length;
+		double[] x = new double[size];
+		double[] y = new double[size];
+		for (int i = 0; i < indices.length; i++) {
+			x[i] = latitude[indices[i]];
+			y[i] = longitude[indices[i]];
+		}
+
+		if (closed) {
+			x[size - 1] = x[0];
+			y[size - 1] = y[0];
+		}
+
+		ContourAttrib attributes = path.getAttributes();
+		return new ContourPath(attributes, path.getLevelIndex(), x, y);
+	}// END: toPath
+
+	private static double segmentDistance(double px, double py, double ax,
+			double ay, double bx, double by) {
+
+		double dx = bx - ax;
+		double dy = by - ay;
+		double length = dx * dx + dy * dy;
+
+		double t = (length == 0) ? 0 : ((px - ax) * dx + (py - ay) * dy)
+				/ length;
+		t = Math.max(0, Math.min(1, t));
+
+		return Math.hypot(px - ax - t * dx, py - ay - t * dy);
+	}// END: segmentDistance
+
+	private static boolean intersect(double ax, double ay, double bx,
+			double by, double cx, double cy, double dx, double dy) {
+
+		if (Math.max(ax, bx) < Math.min(cx, dx)
+				|| Math.max(cx, dx) < Math.min(ax, bx)
+				|| Math.max(ay, by) < Math.min(cy, dy)
+				|| Math.max(cy, dy) < Math.min(ay, by)) {
+			return false;
+		}
+
+		double d1 = cross(cx, cy, dx, dy, ax, ay);
+		double d2 = cross(cx, cy, dx, dy, bx, by);
+		double d3 = cross(ax, ay, bx, by, cx, cy);
+		double d4 = cross(ax, ay, bx, by, dx, dy);
+
+		return ((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0))
+				&& ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0));
+	}// END: intersect
+
+	private static double cross(double ax, double ay, double bx, double by,
+			double px, double py) {
+		return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+	}// END: cross
+
+}// END: class
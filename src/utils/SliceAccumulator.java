@@ -0,0 +1,146 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Collects imputed coordinates per time slice.
+ * Every thread appends to its own growable primitive buffers, so no
+ * locking and no boxing happens while trees are analyzed. Buffers are
+ * merged per slice once all writers are done.
+ * */
+
+public class SliceAccumulator {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final int slicesCount;
+	private final List<Buffer> buffers;
+	private final ThreadLocal<Buffer> localBuffer;
+
+	public SliceAccumulator(int slicesCount) {
+
+		this.slicesCount = slicesCount;
+		this.buffers = new ArrayList<Buffer>();
+
+		localBuffer = new ThreadLocal<Buffer>() {
+
+			@Override
+			protected Buffer initialValue() {
+
+				Buffer buffer = new Buffer();
+				synchronized (buffers) {
+					buffers.add(buffer);
+				}
+
+				return buffer;
+			}
+		};
+
+	}// END: SliceAccumulator()
+
+	public void add(int slice, double latitude, double longitude) {
+		localBuffer.get().add(slice, latitude, longitude);
+	}// END: add
+
+	public int getSlicesCount() {
+		return slicesCount;
+	}// END: getSlicesCount
+
+	/*
+	 * Only valid once all writers have finished
+	 * */
+	public int getSize(int slice) {
+
+		int size = 0;
+		synchronized (buffers) {
+			for (Buffer buffer : buffers) {
+				size += buffer.sizes[slice];
+			}
+		}
+
+		return size;
+	}// END: getSize
+
+	public double[] getLatitudes(int slice) {
+		return merge(slice, true);
+	}// END: getLatitudes
+
+	public double[] getLongitudes(int slice) {
+		return merge(slice, false);
+	}// END: getLongitudes
+
+	/*
+	 * Frees the memory held for the slice
+	 * */
+	public void clear(int slice) {
+
+		synchronized (buffers) {
+			for (Buffer buffer : buffers) {
+				buffer.latitudes[slice] = null;
+				buffer.longitudes[slice] = null;
+				buffer.sizes[slice] = 0;
+			}
+		}
+
+	}// END: clear
+
+	private double[] merge(int slice, boolean latitudes) {
+
+		double[] merged = new double[getSize(slice)];
+
+		int offset = 0;
+		synchronized (buffers) {
+			for (Buffer buffer : buffers) {
+
+				int size = buffer.sizes[slice];
+				if (size > 0) {
+
+					double[] values = latitudes ? buffer.latitudes[slice]
+							: buffer.longitudes[slice];
+					System.arraycopy(values, 0, merged, offset, size);
+					offset += size;
+
+				}
+			}// END: buffers loop
+		}
+
+		return merged;
+	}// END: merge
+
+	private class Buffer {
+
+		private final double[][] latitudes = new double[slicesCount][];
+		private final double[][] longitudes = new double[slicesCount][];
+		private final int[] sizes = new int[slicesCount];
+
+		private void add(int slice, double latitude, double longitude) {
+
+			int size = sizes[slice];
+
+			if (latitudes[slice] == null) {
+
+				latitudes[slice] = new double[INITIAL_CAPACITY];
+				longitudes[slice] = new double[INITIAL_CAPACITY];
+
+			} else if (size == latitudes[slice].length) {
+
+				double[] temp = new double[size << 1];
+				System.arraycopy(latitudes[slice], 0, temp, 0, size);
+				latitudes[slice] = temp;
+
+				temp = new double[size << 1];
+				System.arraycopy(longitudes[slice], 0, temp, 0, size);
+				longitudes[slice] = temp;
+
+			}// END: capacity check
+
+			latitudes[slice][size] = latitude;
+			longitudes[slice][size] = longitude;
+			sizes[slice] = size + 1;
+
+		}// END: add
+
+	}// END: Buffer class
+
+}// END: class
@@ -0,0 +1,83 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.trees.RootedTree;
+import math.MathUtils;
+
+/*
+ * States of the nodes of a tree, read once. Combined states ("A+B") are tied
+ * and one of them is kept, picked by hashing the position of the node in a
+ * preorder walk with the seed. A node therefore resolves the same way in
+ * every pass over the tree, whatever order the nodes are visited in, and
+ * the same seed gives the same states in every run.
+ * */
+
+public class StateResolver {
+
+	private final Map<Node, String> states;
+
+	public StateResolver(RootedTree tree, String stateAttName, long seed,
+			boolean verbose) {
+
+		states = new HashMap<Node, String>();
+
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(tree.getRootNode());
+
+		int nodeIndex = 0;
+		while (!stack.isEmpty()) {
+
+			Node node = stack.remove(stack.size() - 1);
+
+			String state = (String) node.getAttribute(stateAttName);
+			if (state != null && state.contains("+")) {// this breaks ties
+
+				if (verbose)
+					System.out.println("Found combined " + stateAttName
+							+ " attribute: " + state);
+
+				String[] tied = state.split("\\+");
+				state = tied[pick(nodeIndex, seed, tied.length)];
+
+				if (verbose)
+					System.out.println("Randomly picking: " + state);
+
+			}
+
+			states.put(node, state);
+			nodeIndex++;
+
+			// pushed in reverse so children are visited in order
+			List<Node> children = tree.getChildren(node);
+			for (int i = children.size() - 1; i >= 0; i--) {
+				stack.add(children.get(i));
+			}
+
+		}// END: preorder loop
+
+	}// END: StateResolver()
+
+	/*
+	 * @return state of the node, null if it has none
+	 */
+	public String getState(Node node) {
+		return states.get(node);
+	}
+
+	public Map<Node, String> getStates() {
+		return states;
+	}
+
+	/*
+	 * Mixes node index and seed into 0 <= i < count
+	 */
+	private static int pick(int nodeIndex, long seed, int count) {
+		return (int) ((MathUtils.mix64(seed, nodeIndex) >>> 1) % count);
+	}
+
+}// END: class
@@ -2,17 +2,23 @@ package utils;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
 public class ThreadLocalSpreadDate {
 
-	private static ThreadLocal<Calendar> calThreadLocal;
-	// private Calendar cal;
+	// how many millisecond one day holds
+	private static final long DayInMillis = 86400000L;
+
 	private SimpleDateFormat formatter;
 	private Date stringdate;
 
+	// date arithmetic is done on the wall clock of this zone
+	private TimeZone timeZone;
+	private long time;
+	private int timeOffset;
+
 	public ThreadLocalSpreadDate(String date) throws ParseException {
 
 		// if no era specified assume current era
@@ -26,35 +32,53 @@ public class ThreadLocalSpreadDate {
 		formatter = new SimpleDateFormat("yyyy-MM-dd G", Locale.US);
 		stringdate = formatter.parse(date);
 
-		// Make calls to Calendar class in thread safe way
-		calThreadLocal = new ThreadLocal<Calendar>() {
-
-			@Override
-			protected Calendar initialValue() {
-				return Calendar.getInstance();
-			}
-		};
+		timeZone = formatter.getTimeZone();
+		time = stringdate.getTime();
+		timeOffset = timeZone.getOffset(time);
 
 	}// END: ThreadLocalSpreadDate()
 
 	public long plus(int days) {
-		Calendar cal = calThreadLocal.get();
-		cal.setTime(stringdate);
-		cal.add(Calendar.DATE, days);
-		return cal.getTimeInMillis();
+		return shift(days);
 	}// END: plus
 
 	public long minus(int days) {
-		Calendar cal = calThreadLocal.get();
-		cal.setTime(stringdate);
-		cal.add(Calendar.DATE, -days);
-		return cal.getTimeInMillis();
+		return shift(-(long) days);
 	}// END: minus
 
 	public long getTime() {
-		Calendar cal = calThreadLocal.get();
-		cal.setTime(stringdate);
-		return cal.getTimeInMillis();
+		return time;
 	}// END: getDate
 
+	/*
+	 * Same result as Calendar.add(Calendar.DATE, days): days are counted on
+	 * the local wall clock, so the time of day survives daylight saving
+	 * changes. Days are continuous across eras and the Julian/Gregorian
+	 * cutover, only the zone offset needs correcting.
+	 * */
+	private long shift(long days) {
+
+		long wallTime = time + timeOffset + days * DayInMillis;
+		long shifted = wallTime - timeZone.getOffset(wallTime - timeOffset);
+
+		// near an offset transition retry with the offset found
+		int offset = timeZone.getOffset(shifted);
+		if (shifted + offset != wallTime) {
+
+			long retry = wallTime - offset;
+			if (retry + timeZone.getOffset(retry) == wallTime) {
+				shifted = retry;
+			} else {
+				// wall time falls into a gap, Calendar uses the offset in
+				// effect before the transition
+				shifted = wallTime
+						- timeZone.getOffset(Math.min(shifted, retry));
+			}
+
+		}// END: transition check
+
+		return shifted;
+
+	}// END: shift
+
 }
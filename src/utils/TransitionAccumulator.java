@@ -0,0 +1,214 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Collects discrete location summaries over a posterior set of trees: jumps
+ * between every pair of locations, the number of trees showing each jump,
+ * and the lineages staying in each location at given heights. Every thread
+ * adds to its own primitive matrices, so memory does not grow with the
+ * number of trees. Lineages are added as +1/-1 at the first and past the
+ * last height they span, and summed once when the matrices are merged.
+ * */
+
+public class TransitionAccumulator {
+
+	private final int locationsCount;
+	// decreasing
+	private final double[] heights;
+	private final List<Buffer> buffers;
+	private final ThreadLocal<Buffer> localBuffer;
+
+	/*
+	 * @param heights heights at which lineages are counted, decreasing
+	 */
+	public TransitionAccumulator(int locationsCount, double[] heights) {
+
+		this.locationsCount = locationsCount;
+		this.heights = heights;
+		this.buffers = new ArrayList<Buffer>();
+
+		localBuffer = new ThreadLocal<Buffer>() {
+
+			@Override
+			protected Buffer initialValue() {
+
+				Buffer buffer = new Buffer();
+				synchronized (buffers) {
+					buffers.add(buffer);
+				}
+
+				return buffer;
+			}
+		};
+
+	}// END: TransitionAccumulator()
+
+	/*
+	 * Called once per tree, before its jumps
+	 * */
+	public void addTree() {
+		localBuffer.get().treesCount++;
+	}// END: addTree
+
+	/*
+	 * A lineage moving from one location to another in tree treeIndex
+	 * */
+	public void addJump(int treeIndex, int from, int to) {
+
+		Buffer buffer = localBuffer.get();
+		int pair = from * locationsCount + to;
+
+		buffer.jumps[pair]++;
+		// counted once per tree
+		if (buffer.lastTree[pair] != treeIndex + 1) {
+			buffer.lastTree[pair] = treeIndex + 1;
+			buffer.support[pair]++;
+		}
+
+	}// END: addJump
+
+	/*
+	 * A lineage staying in the location from parentHeight down to nodeHeight,
+	 * counted at the heights h with nodeHeight <= h < parentHeight
+	 * */
+	public void addLineage(int location, double nodeHeight,
+			double parentHeight) {
+
+		int first = Utils.countHeightsAtLeast(heights, parentHeight);
+		int last = Utils.countHeightsAtLeast(heights, nodeHeight);
+
+		if (first < last) {
+			int[] changes = localBuffer.get().changes;
+			changes[first * locationsCount + location]++;
+			changes[last * locationsCount + location]--;
+		}
+
+	}// END: addLineage
+
+	public int getLocationsCount() {
+		return locationsCount;
+	}// END: getLocationsCount
+
+	/*
+	 * Only valid once all writers have finished
+	 * */
+	public int getTreesCount() {
+
+		int treesCount = 0;
+		synchronized (buffers) {
+			for (Buffer buffer : buffers) {
+				treesCount += buffer.treesCount;
+			}
+		}
+
+		return treesCount;
+	}// END: getTreesCount
+
+	/*
+	 * Mean number of jumps per tree, indexed [from][to]
+	 * */
+	public double[][] getExpectedJumps() {
+
+		double[][] expected = new double[locationsCount][locationsCount];
+		int treesCount = getTreesCount();
+
+		synchronized (buffers) {
+			for (Buffer buffer : buffers) {
+				for (int from = 0; from < locationsCount; from++) {
+					for (int to = 0; to < locationsCount; to++) {
+						expected[from][to] += buffer.jumps[from
+								* locationsCount + to];
+					}
+				}
+			}// END: buffers loop
+		}
+
+		scale(expected, treesCount);
+
+		return expected;
+	}// END: getExpectedJumps
+
+	/*
+	 * Fraction of trees with at least one jump, indexed [from][to]
+	 * */
+	public double[][] getSupport() {
+
+		double[][] support = new double[locationsCount][locationsCount];
+		int treesCount = getTreesCount();
+
+		synchronized (buffers) {
+			for (Buffer buffer : buffers) {
+				for (int from = 0; from < locationsCount; from++) {
+					for (int to = 0; to < locationsCount; to++) {
+						support[from][to] += buffer.support[from
+								* locationsCount + to];
+					}
+				}
+			}// END: buffers loop
+		}
+
+		scale(support, treesCount);
+
+		return support;
+	}// END: getSupport
+
+	/*
+	 * Mean number of lineages per tree, indexed [height][location]
+	 * */
+	public double[][] getOccupancy() {
+
+		double[][] occupancy = new double[heights.length][locationsCount];
+		int treesCount = getTreesCount();
+
+		long[] running = new long[locationsCount];
+		for (int i = 0; i < heights.length; i++) {
+
+			synchronized (buffers) {
+				for (Buffer buffer : buffers) {
+					for (int k = 0; k < locationsCount; k++) {
+						running[k] += buffer.changes[i * locationsCount + k];
+					}
+				}
+			}
+
+			for (int k = 0; k < locationsCount; k++) {
+				occupancy[i][k] = running[k];
+			}
+
+		}// END: heights loop
+
+		scale(occupancy, treesCount);
+
+		return occupancy;
+	}// END: getOccupancy
+
+	private static void scale(double[][] matrix, int treesCount) {
+
+		if (treesCount == 0) {
+			return;
+		}
+
+		for (double[] row : matrix) {
+			for (int j = 0; j < row.length; j++) {
+				row[j] /= treesCount;
+			}
+		}
+
+	}// END: scale
+
+	private class Buffer {
+
+		private final double[] jumps = new double[locationsCount
+				* locationsCount];
+		private final int[] support = new int[locationsCount * locationsCount];
+		// last tree index + 1 counted in support, per pair
+		private final int[] lastTree = new int[locationsCount * locationsCount];
+		private final int[] changes = new int[(heights.length + 1)
+				* locationsCount];
+		private int treesCount = 0;
+
+	}// END: Buffer class
+
+}// END: class
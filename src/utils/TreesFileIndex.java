@@ -0,0 +1,202 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/*
+ * Byte level index of the tree statements in a Nexus trees file.
+ * Lines starting with the "tree" keyword are counted without building
+ * any trees, so skipping burn-in costs a line scan.
+ * */
+
+public class TreesFileIndex {
+
+	// scanning window, mappings are limited to Integer.MAX_VALUE bytes
+	private static final int SCAN_WINDOW = 64 * 1024 * 1024;
+
+	private static final byte[] TREE_TOKEN = { 't', 'r', 'e', 'e' };
+	private static final byte[] END_TOKEN = { 'e', 'n', 'd' };
+
+	private final String path;
+	// same decoding as FileReader
+	private final Charset charset;
+
+	private byte[] header;
+	private long[] treeOffsets;
+	private int treesCount;
+	private long treesEnd;
+
+	public TreesFileIndex(String path) {
+		this.path = path;
+		this.charset = Charset.defaultCharset();
+	}// END: TreesFileIndex()
+
+	/*
+	 * Indexes every tree statement in the file
+	 * */
+	public void scan() throws IOException {
+		scan(Integer.MAX_VALUE);
+	}// END: scan
+
+	/*
+	 * Stops after maxTrees statements have been indexed
+	 * */
+	public void scan(int maxTrees) throws IOException {
+
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+
+		try {
+
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+
+			treeOffsets = new long[1024];
+			treesCount = 0;
+			treesEnd = size;
+
+			boolean lineStart = true;
+			boolean skipLine = false;
+			long tokenStart = 0;
+			int treeMatched = 0;
+			int endMatched = 0;
+
+			scanning: for (long windowStart = 0; windowStart < size; windowStart += SCAN_WINDOW) {
+
+				int windowSize = (int) Math.min(SCAN_WINDOW, size
+						- windowStart);
+				MappedByteBuffer window = channel.map(
+						FileChannel.MapMode.READ_ONLY, windowStart,
+						windowSize);
+
+				for (int i = 0; i < windowSize; i++) {
+
+					byte b = window.get(i);
+
+					if (b == '\n' || b == '\r') {
+
+						lineStart = true;
+						skipLine = false;
+						continue;
+
+					} else if (skipLine) {
+
+						continue;
+
+					} else if (lineStart) {
+
+						if (b == ' ' || b == '\t') {
+							continue;
+						}
+
+						lineStart = false;
+						tokenStart = windowStart + i;
+						treeMatched = 0;
+						endMatched = 0;
+
+					}// END: line start check
+
+					boolean whitespace = (b == ' ' || b == '\t');
+					byte lower = (byte) (b | 0x20);
+
+					if (treeMatched == TREE_TOKEN.length && whitespace) {
+
+						if (treesCount == maxTrees) {
+							treesEnd = tokenStart;
+							break scanning;
+						}
+
+						addTreeOffset(tokenStart);
+						skipLine = true;
+
+					} else if (endMatched == END_TOKEN.length
+							&& (whitespace || b == ';') && treesCount > 0) {
+
+						treesEnd = tokenStart;
+						break scanning;
+
+					} else {
+
+						treeMatched = (treeMatched >= 0
+								&& treeMatched < TREE_TOKEN.length && lower == TREE_TOKEN[treeMatched]) ? treeMatched + 1
+								: -1;
+
+						endMatched = (endMatched >= 0
+								&& endMatched < END_TOKEN.length && lower == END_TOKEN[endMatched]) ? endMatched + 1
+								: -1;
+
+						skipLine = (treeMatched < 0 && endMatched < 0);
+
+					}// END: token check
+				}// END: window loop
+			}// END: windows loop
+
+			long headerEnd = (treesCount > 0) ? treeOffsets[0] : treesEnd;
+			header = new byte[(int) headerEnd];
+			channel.map(FileChannel.MapMode.READ_ONLY, 0, headerEnd).get(
+					header);
+
+		} finally {
+			file.close();
+		}
+
+	}// END: scan
+
+	/*
+	 * Reader of the header followed by the trees from the given tree
+	 * statement on, trees before it are never parsed. The caller closes it.
+	 * */
+	public Reader openTrees(int firstTree) throws IOException {
+
+		long start = (firstTree < treesCount) ? treeOffsets[firstTree]
+				: treesEnd;
+
+		FileInputStream trees = new FileInputStream(path);
+		trees.getChannel().position(start);
+
+		SequenceInputStream stream = new SequenceInputStream(
+				new ByteArrayInputStream(header), trees);
+
+		return new InputStreamReader(stream, charset);
+	}// END: openTrees
+
+	public byte[] getHeader() {
+		return header;
+	}// END: getHeader
+
+	public Charset getCharset() {
+		return charset;
+	}// END: getCharset
+
+	public int getTreesCount() {
+		return treesCount;
+	}// END: getTreesCount
+
+	public long getTreeStart(int index) {
+		return treeOffsets[index];
+	}// END: getTreeStart
+
+	public long getTreeEnd(int index) {
+		return (index + 1 < treesCount) ? treeOffsets[index + 1] : treesEnd;
+	}// END: getTreeEnd
+
+	private void addTreeOffset(long offset) {
+
+		if (treesCount == treeOffsets.length) {
+			long[] temp = new long[treesCount << 1];
+			System.arraycopy(treeOffsets, 0, temp, 0, treesCount);
+			treeOffsets = temp;
+		}
+
+		treeOffsets[treesCount++] = offset;
+
+	}// END: addTreeOffset
+
+}// END: class
@@ -0,0 +1,272 @@
+package utils;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import jebl.evolution.io.ImportException;
+import jebl.evolution.io.NexusImporter;
+import jebl.evolution.io.TreeImporter;
+import jebl.evolution.trees.RootedTree;
+
+/*
+ * Bounded producer/consumer stage for posterior trees:
+ * parser thread -> bounded queue -> worker pool.
+ * The producer blocks when the queue is full, so at most
+ * queueDepth + workers parsed trees are held in memory at any time.
+ * The first task to fail stops the producer and is rethrown from put and
+ * finish, the workers only drain the queue from then on.
+ * */
+
+public class TreesPipeline {
+
+	public interface TreeTaskFactory {
+
+		/*
+		 * Called on a worker thread for every tree past burn-in
+		 * */
+		Runnable createTask(RootedTree tree, int treeIndex);
+
+	}// END: TreeTaskFactory
+
+	private static final int PROGRESS_STEP = 500;
+
+	// marks the end of the stream for a worker
+	private static final IndexedTree POISON_PILL = new IndexedTree(null, -1);
+
+	private final BlockingQueue<IndexedTree> queue;
+	private final int workersCount;
+	private Thread[] workers;
+	// first task failure, any Throwable
+	private volatile Throwable failure;
+
+	public TreesPipeline(int queueDepth, int workersCount) {
+
+		if (queueDepth < 1 || workersCount < 1) {
+			throw new IllegalArgumentException(
+					"Queue depth and number of workers must be positive!");
+		}
+
+		this.queue = new ArrayBlockingQueue<IndexedTree>(queueDepth);
+		this.workersCount = workersCount;
+
+	}// END: TreesPipeline()
+
+	public void start(final TreeTaskFactory factory) {
+
+		failure = null;
+		workers = new Thread[workersCount];
+		for (int i = 0; i < workersCount; i++) {
+
+			workers[i] = new Thread(new Runnable() {
+
+				public void run() {
+					consume(factory);
+				}
+
+			}, "TreesPipeline-worker-" + i);
+
+			workers[i].start();
+
+		}// END: workers loop
+
+	}// END: start
+
+	/*
+	 * Blocks while the queue is full, throws the failure of any task
+	 * */
+	public void put(RootedTree tree, int treeIndex) {
+
+		checkFailure();
+
+		try {
+
+			queue.put(new IndexedTree(tree, treeIndex));
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while queueing trees!");
+		}
+
+	}// END: put
+
+	/*
+	 * Signals end of stream and waits for workers to drain the queue, throws
+	 * the failure of any task
+	 * */
+	public void finish() {
+
+		try {
+
+			for (int i = 0; i < workersCount; i++) {
+				queue.put(POISON_PILL);
+			}
+
+			for (Thread worker : workers) {
+				worker.join();
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while analyzing trees!");
+		}
+
+		checkFailure();
+
+	}// END: finish
+
+	/*
+	 * Serial parser feeding the workers, returns the number of trees read
+	 * (burn-in included)
+	 * */
+	public int process(TreeImporter importer, int burnIn,
+			TreeTaskFactory factory) throws IOException, ImportException {
+		return process(importer, 0, burnIn, factory);
+	}// END: process
+
+	/*
+	 * As above, for an importer positioned after skippedTrees trees which
+	 * were already counted elsewhere (see TreesFileIndex)
+	 * */
+	public int process(TreeImporter importer, int skippedTrees, int burnIn,
+			TreeTaskFactory factory) throws IOException, ImportException {
+
+		start(factory);
+
+		int readTrees = skippedTrees;
+		try {
+
+			while (importer.hasTree()) {
+
+				RootedTree currentTree = (RootedTree) importer
+						.importNextTree();
+
+				if (readTrees >= burnIn) {
+
+					put(currentTree, readTrees);
+
+					if (readTrees % PROGRESS_STEP == 0) {
+						System.out.print(readTrees + " trees... ");
+					}
+				}// END: burn-in check
+
+				readTrees++;
+
+			}// END: while has trees
+
+		} finally {
+			finish();
+		}
+
+		return readTrees;
+	}// END: process
+
+	/*
+	 * Trees file read by the parsersCount parsers of ParallelTreesParser, or
+	 * by one parser after skipping burn-in with a line scan (fastBurnIn), or
+	 * by one parser from the start. Returns the number of trees read
+	 * (burn-in included)
+	 * */
+	public int process(String path, int parsersCount, boolean fastBurnIn,
+			int burnIn, TreeTaskFactory factory) throws IOException,
+			ImportException {
+
+		if (parsersCount > 1) {
+			return new ParallelTreesParser(path, parsersCount).process(this,
+					burnIn, factory);
+		}
+
+		Reader reader;
+		int skippedTrees;
+		if (fastBurnIn) {
+
+			TreesFileIndex index = new TreesFileIndex(path);
+			index.scan(burnIn);
+
+			skippedTrees = index.getTreesCount();
+			reader = index.openTrees(skippedTrees);
+
+		} else {
+
+			skippedTrees = 0;
+			reader = new FileReader(path);
+
+		}
+
+		try {
+			return process(new NexusImporter(reader), skippedTrees, burnIn,
+					factory);
+		} finally {
+			reader.close();
+		}
+
+	}// END: process
+
+	private void consume(TreeTaskFactory factory) {
+
+		try {
+
+			while (true) {
+
+				IndexedTree next = queue.take();
+				if (next == POISON_PILL) {
+					break;
+				}
+
+				// keep taking after a failure so the producer never blocks
+				if (failure != null) {
+					continue;
+				}
+
+				try {
+
+					factory.createTask(next.tree, next.index).run();
+
+				} catch (Throwable e) {
+					recordFailure(e);
+				}
+
+			}// END: take loop
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}// END: consume
+
+	private synchronized void recordFailure(Throwable e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}// END: recordFailure
+
+	private void checkFailure() {
+
+		Throwable cause = failure;
+		if (cause == null) {
+			return;
+		} else if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		} else if (cause instanceof Error) {
+			throw (Error) cause;
+		} else {
+			throw new RuntimeException(cause);
+		}
+
+	}// END: checkFailure
+
+	private static class IndexedTree {
+
+		private final RootedTree tree;
+		private final int index;
+
+		private IndexedTree(RootedTree tree, int index) {
+			this.tree = tree;
+			this.index = index;
+		}
+
+	}// END: IndexedTree class
+
+}// END: class
@@ -8,9 +8,11 @@ import java.io.PrintWriter;
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentMap;
 
@@ -756,6 +758,112 @@ public class Utils {
 		return m;
 	}// END: getTreeHeightMax
 
+	public static double[][] countLineagesHoldingState(RootedTree tree,
+			Map<Node, String> states, String[] locations,
+			int numberOfIntervals, double rootHeight) {
+		/**
+		 * Counts, at the end of every interval, the lineages whose node and
+		 * parent are both in a location. Every branch is resolved once and
+		 * added to the run of intervals it spans, found by binary search.
+		 * 
+		 * @param states
+		 *            resolved state of every node, null if unknown
+		 * @param locations
+		 *            location names, compared ignoring case
+		 * @return [interval][0] holds the interval end height,
+		 *         [interval][location + 1] the number of lineages
+		 */
+		int intervalsCount = numberOfIntervals - 1;
+		double delta = rootHeight / numberOfIntervals;
+		double[][] numberOfLineages = new double[intervalsCount][locations.length
+				+ 1];
+
+		// decreasing with the interval
+		double[] heights = new double[intervalsCount];
+		for (int i = 0; i < intervalsCount; i++) {
+			heights[i] = rootHeight - ((i + 1) * delta);
+			numberOfLineages[i][0] = heights[i];
+		}
+
+		// locations sharing a name share a count
+		Map<String, Integer> locationIndex = new HashMap<String, Integer>();
+		int[] locationOfColumn = new int[locations.length];
+		for (int j = 0; j < locations.length; j++) {
+			String name = locations[j].toLowerCase();
+			Integer index = locationIndex.get(name);
+			if (index == null) {
+				index = locationIndex.size();
+				locationIndex.put(name, index);
+			}
+			locationOfColumn[j] = index;
+		}
+
+		// +1 when a branch starts spanning an interval, -1 after its last
+		int[][] changes = new int[intervalsCount + 1][locationIndex.size()];
+		for (Node node : tree.getNodes()) {
+			if (!tree.isRoot(node)) {
+
+				Node parentNode = tree.getParent(node);
+				String state = states.get(node);
+				String parentState = states.get(parentNode);
+
+				if (state == null || parentState == null) {
+					continue;
+				}
+
+				String name = state.toLowerCase();
+				if (!name.equals(parentState.toLowerCase())) {
+					continue;
+				}
+
+				Integer index = locationIndex.get(name);
+				if (index == null) {
+					continue;
+				}
+
+				// intervals with height <= end height < parent height
+				int first = countHeightsAtLeast(heights, tree
+						.getHeight(parentNode));
+				int last = countHeightsAtLeast(heights, tree.getHeight(node));
+				if (first < last) {
+					changes[first][index]++;
+					changes[last][index]--;
+				}
+
+			}// END: root check
+		}// END: node loop
+
+		int[] running = new int[locationIndex.size()];
+		for (int i = 0; i < intervalsCount; i++) {
+
+			for (int k = 0; k < running.length; k++) {
+				running[k] += changes[i][k];
+			}
+
+			for (int j = 0; j < locations.length; j++) {
+				numberOfLineages[i][j + 1] = running[locationOfColumn[j]];
+			}
+
+		}// END: intervals loop
+
+		return numberOfLineages;
+	}// END: countLineagesHoldingState
+
+	static int countHeightsAtLeast(double[] heights, double height) {
+		// heights are decreasing, so these lead the array
+		int low = 0;
+		int high = heights.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (heights[middle] >= height) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}// END: countHeightsAtLeast
+
 	public static double getListMin(List<Double> list) {
 		double m = Double.MAX_VALUE;
 		for (int i = 0; i < list.size(); i++) {